@@ -0,0 +1,45 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocator of {@link ByteBuffer}s for socket I/O and frame encoding.
+ * <p>
+ * Each selector loop owns its own pool created by {@link Factory}.
+ * Buffers might be acquired on any thread and released on the selector thread, so implementations must be thread safe.
+ * </p>
+ */
+public interface BufferPool {
+    /**
+     * Acquire a buffer.
+     *
+     * @param capacity Required capacity in bytes.
+     * @return Buffer whose position is {@code 0} and limit is {@code capacity}. Actual capacity might be larger.
+     */
+    ByteBuffer acquire(int capacity);
+
+    /**
+     * Give the buffer back to this pool.<br>
+     * The buffer must not be used by the caller after this call.
+     * Buffers which are not acquired from this pool might be simply discarded.
+     *
+     * @param buffer Buffer to be released.
+     */
+    void release(ByteBuffer buffer);
+
+    interface Factory {
+        /**
+         * @return Newly created pool for a selector loop.
+         */
+        BufferPool newBufferPool();
+    }
+}
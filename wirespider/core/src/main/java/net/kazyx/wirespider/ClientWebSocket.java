@@ -22,6 +22,7 @@ import java.nio.channels.SocketChannel;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Client flavor of WebSocket.
@@ -32,8 +33,22 @@ public abstract class ClientWebSocket extends WebSocket {
     private final SessionRequest mReq;
     private final SocketBinder mSocketBinder;
 
-    private final CountDownLatch mConnectLatch = new CountDownLatch(1);
-    private IOException mHandshakeFailure;
+    private final AtomicBoolean mConnectStarted = new AtomicBoolean(false);
+    private final AtomicBoolean mConnectFinished = new AtomicBoolean(false);
+    private volatile Timeout mConnectTimeout;
+    private volatile ConnectListener mConnectListener;
+
+    /**
+     * Completion handler of {@link #connectAsync(int, TimeUnit, ConnectListener)}.
+     */
+    interface ConnectListener {
+        /**
+         * Called once when the opening handshake is finished.
+         *
+         * @param failure Cause of the failure, or {@code null} if the handshake is completed.
+         */
+        void onConnectFinished(IOException failure);
+    }
 
     protected ClientWebSocket(SessionRequest req, SelectorLoop loop, SocketChannel ch) {
         super(req, loop, ch);
@@ -50,14 +65,38 @@ public abstract class ClientWebSocket extends WebSocket {
     @Override
     void onHandshakeFailed(IOException e) {
         WsLog.e(TAG, "WebSocket handshake failure");
-        mHandshakeFailure = e;
-        mConnectLatch.countDown();
+        finishConnect(e);
     }
 
     @Override
     void onHandshakeCompleted() {
         WsLog.d(TAG, "WebSocket handshake completed");
-        mConnectLatch.countDown();
+        finishConnect(null);
+    }
+
+    /**
+     * Called once by handshake completion, handshake failure, connection timeout or abort, whichever comes first.
+     *
+     * @param failure Cause of the failure, or {@code null} if the handshake is completed.
+     */
+    private void finishConnect(IOException failure) {
+        if (!mConnectFinished.compareAndSet(false, true)) {
+            return;
+        }
+        Timeout timeout = mConnectTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        mConnectListener.onConnectFinished(failure);
+    }
+
+    /**
+     * Abort opening handshake in progress. Nothing happens if it is already finished.
+     *
+     * @param cause Cause to be notified to the {@link ConnectListener}.
+     */
+    void abortConnect(IOException cause) {
+        finishConnect(cause);
     }
 
     /**
@@ -68,39 +107,70 @@ public abstract class ClientWebSocket extends WebSocket {
      * @throws IOException Failed to open connection.
      */
     void connect(int timeout, TimeUnit unit) throws IOException {
-        if (mConnectLatch.getCount() == 0) {
-            throw new IOException("ClientWebSocket is not reusable");
-        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        final IOException[] result = new IOException[1];
+        connectAsync(timeout, unit, new ConnectListener() {
+            @Override
+            public void onConnectFinished(IOException failure) {
+                result[0] = failure;
+                latch.countDown();
+            }
+        });
 
-        final Socket socket = socketChannel().socket();
-        if (mSocketBinder != null) {
-            mSocketBinder.bind(socket);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            WsLog.e(TAG, "Connection interrupted");
+            abortConnect(new InterruptedIOException(e.getMessage()));
+            throw new InterruptedIOException(e.getMessage());
         }
-        socket.setTcpNoDelay(true);
 
-        URI uri = remoteUri();
+        if (result[0] != null) {
+            throw result[0];
+        }
+    }
 
-        WsLog.d(TAG, "Start connection");
-        socketChannel().connect(new InetSocketAddress(uri.getHost(), getPort(uri)));
-        selectorLoop().register(this, SelectionKey.OP_CONNECT);
+    /**
+     * Start opening client WebSocket connection without blocking.<br>
+     * Host name of the remote server is resolved on the calling thread.
+     *
+     * @param timeout Timeout to complete opening handshake
+     * @param unit Timeout unit
+     * @param listener Listener to be notified on the selector thread when the opening handshake is finished.
+     * @throws IllegalStateException If this method is called twice.
+     */
+    void connectAsync(final int timeout, final TimeUnit unit, ConnectListener listener) {
+        if (!mConnectStarted.compareAndSet(false, true)) {
+            throw new IllegalStateException("ClientWebSocket is not reusable");
+        }
+        mConnectListener = listener;
 
         try {
-            if (timeout == 0) {
-                mConnectLatch.await();
-            } else {
-                if (!mConnectLatch.await(timeout, unit)) {
-                    WsLog.e(TAG, "Connection timeout");
-                    throw new IOException(String.format(Locale.US, "Connection timeout: %d msec", unit.toMillis(timeout)));
-                }
+            final Socket socket = socketChannel().socket();
+            if (mSocketBinder != null) {
+                mSocketBinder.bind(socket);
             }
-        } catch (InterruptedException e) {
-            WsLog.e(TAG, "Connection interrupted");
-            throw new InterruptedIOException(e.getMessage());
+            socket.setTcpNoDelay(true);
+
+            URI uri = remoteUri();
+
+            WsLog.d(TAG, "Start connection");
+            socketChannel().connect(new InetSocketAddress(uri.getHost(), getPort(uri)));
+        } catch (IOException e) {
+            finishConnect(e);
+            return;
         }
 
-        if (mHandshakeFailure != null) {
-            throw mHandshakeFailure;
+        if (timeout != 0) {
+            mConnectTimeout = selectorLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    WsLog.e(TAG, "Connection timeout");
+                    finishConnect(new IOException(String.format(Locale.US, "Connection timeout: %d msec", unit.toMillis(timeout))));
+                }
+            }, timeout, unit);
         }
+        selectorLoop().register(this, SelectionKey.OP_CONNECT);
     }
 
     private int getPort(URI uri) {
@@ -16,7 +16,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Insecure TCP connection.
@@ -26,60 +28,114 @@ class DefaultSession implements Session {
     private final SocketChannel mChannel;
 
     private static final int READ_BUFFER_SIZE = 1024 * 4;
-    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
 
-    private static final int WRITE_BUFFER_SIZE = 1024 * 4;
-    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final SelectorLoop mLoop;
+    private final BufferPool mPool;
 
     private final Deque<ByteBuffer> mWriteQueue = new ArrayDeque<>();
 
+    private static final int MAX_GATHERING_BUFFERS = 64;
+    private final ByteBuffer[] mGatheringBuffers = new ByteBuffer[MAX_GATHERING_BUFFERS];
+
     private final Object mLock = new Object();
 
     private Listener mListener;
 
-    DefaultSession(SelectionKey key) {
+    private final int mMaxBytesPerFlush;
+
+    private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+    /**
+     * {@code true} after the queued buffers are released. Guarded by {@link #mLock}.
+     */
+    private boolean mQueueReleased = false;
+
+    /**
+     * @param key Selection key of the connection.
+     * @param loop Selector loop to which the connection is assigned.
+     * @param maxBytesPerFlush Maximum number of bytes to be written on a single {@link #onFlushReady()}.
+     */
+    DefaultSession(SelectionKey key, SelectorLoop loop, int maxBytesPerFlush) {
         mKey = key;
         mChannel = (SocketChannel) key.channel();
+        mLoop = loop;
+        mPool = loop.bufferPool();
+        mMaxBytesPerFlush = maxBytesPerFlush;
     }
 
     @Override
     public void enqueueWrite(ByteBuffer data) throws IOException {
+        enqueueWrite(data, false);
+    }
+
+    @Override
+    public void enqueueWrite(ByteBuffer data, boolean calledOnSelectorThread) throws IOException {
         if (!mKey.isValid()) {
             throw new IOException("SelectionKey is invalid");
         }
 
         synchronized (mLock) {
+            if (mQueueReleased) {
+                throw new IOException("Session is closed");
+            }
             mWriteQueue.addLast(data);
             if (mKey.interestOps() != (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) {
                 SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                mKey.selector().wakeup();
+                if (!calledOnSelectorThread) {
+                    // New interest is applied on the next select, thus the blocking select must be interrupted.
+                    mKey.selector().wakeup();
+                }
             }
         }
     }
 
+    /**
+     * Write queued data until the socket send buffer gets full or the flush budget is exhausted.<br>
+     * Queued buffers are passed to the socket as they are by a gathering write.<br>
+     * OP_WRITE interest is kept while any data remains, so that the rest is written on the next readiness
+     * after other connections on the same selector are served.
+     */
     @Override
     public void onFlushReady() throws IOException {
-        synchronized (mLock) {
-            while (mWriteBuffer.remaining() != 0 && !mWriteQueue.isEmpty()) {
-                ByteBuffer data = mWriteQueue.getFirst();
-
-                if (mWriteBuffer.remaining() < data.remaining()) {
-                    byte[] tmp = new byte[mWriteBuffer.remaining()];
-                    data.get(tmp);
-                    mWriteBuffer.put(tmp);
-                } else {
-                    mWriteBuffer.put(data);
-                    mWriteQueue.remove();
+        long written = 0;
+        while (written < mMaxBytesPerFlush) {
+            int count = 0;
+            long gathered = 0;
+            synchronized (mLock) {
+                for (ByteBuffer data : mWriteQueue) {
+                    mGatheringBuffers[count++] = data;
+                    gathered += data.remaining();
+                    if (count == MAX_GATHERING_BUFFERS || written + gathered >= mMaxBytesPerFlush) {
+                        break;
+                    }
+                }
+            }
+            if (count == 0) {
+                break;
+            }
+
+            long length = mChannel.write(mGatheringBuffers, 0, count);
+            Arrays.fill(mGatheringBuffers, 0, count, null);
+
+            synchronized (mLock) {
+                while (!mWriteQueue.isEmpty() && !mWriteQueue.getFirst().hasRemaining()) {
+                    mPool.release(mWriteQueue.removeFirst());
                 }
             }
+
+            if (length == 0) {
+                // Socket send buffer is full.
+                break;
+            }
+            written += length;
         }
 
-        mWriteBuffer.flip();
-        mChannel.write(mWriteBuffer);
-        mWriteBuffer.compact();
+        if (written != 0 && mListener != null) {
+            mListener.onAppDataSent((int) written);
+        }
 
         synchronized (mLock) {
-            if (mWriteBuffer.position() == 0 && mWriteQueue.isEmpty()) {
+            if (mWriteQueue.isEmpty()) {
                 SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ);
             }
         }
@@ -105,26 +161,41 @@ class DefaultSession implements Session {
     }
 
     private ByteBuffer read() throws IOException {
-        try {
-            int length = mChannel.read(mReadBuffer);
-            if (length == -1) {
-                throw new IOException("EOF");
-            } else if (length == 0) {
-                return null;
-            } else {
-                mReadBuffer.flip();
-                ByteBuffer buff = ByteBuffer.allocate(length);
-                buff.put(mReadBuffer);
-                buff.flip();
-                return buff;
-            }
-        } finally {
-            mReadBuffer.clear();
+        ByteBuffer buff = mPool.acquire(READ_BUFFER_SIZE);
+        int length = mChannel.read(buff);
+        if (length == -1) {
+            mPool.release(buff);
+            throw new IOException("EOF");
+        } else if (length == 0) {
+            mPool.release(buff);
+            return null;
+        } else {
+            buff.flip();
+            return buff;
         }
     }
 
     @Override
     public void close() throws IOException {
         mChannel.close();
+        if (mClosed.compareAndSet(false, true)) {
+            // Queued buffers might be in use on the selector thread at this moment, e.g. closed while writing.
+            mLoop.execute(mQueueReleaser);
+        }
     }
+
+    /**
+     * Give the buffers remaining in the write queue back to the pool. Run on the selector thread only once after closed.
+     */
+    private final Runnable mQueueReleaser = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mQueueReleased = true;
+                while (!mWriteQueue.isEmpty()) {
+                    mPool.release(mWriteQueue.removeFirst());
+                }
+            }
+        }
+    };
 }
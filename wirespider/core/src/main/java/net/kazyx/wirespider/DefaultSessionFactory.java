@@ -15,8 +15,19 @@ import java.nio.channels.SelectionKey;
  * Factory to create unsecured TCP connections.
  */
 class DefaultSessionFactory implements SessionFactory {
+    static final int DEFAULT_MAX_BYTES_PER_FLUSH = 1024 * 256;
+
+    private volatile int mMaxBytesPerFlush = DEFAULT_MAX_BYTES_PER_FLUSH;
+
+    /**
+     * @param bytes Maximum number of bytes to be written into a socket on a single write readiness.
+     */
+    void setMaxBytesPerFlush(int bytes) {
+        mMaxBytesPerFlush = bytes;
+    }
+
     @Override
-    public DefaultSession createNew(SelectionKey key) {
-        return new DefaultSession(key);
+    public DefaultSession createNew(SelectionKey key, SelectorLoop loop, SessionRequest req) {
+        return new DefaultSession(key, loop, mMaxBytesPerFlush);
     }
 }
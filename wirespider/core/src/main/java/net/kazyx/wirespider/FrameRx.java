@@ -34,16 +34,16 @@ public interface FrameRx {
         /**
          * Called when received ping control frame.
          *
-         * @param message Ping message.
+         * @param payload Application data of the ping frame.
          */
-        void onPingFrame(String message);
+        void onPingFrame(byte[] payload);
 
         /**
          * Called when received pong control frame.
          *
-         * @param message Pong message.
+         * @param payload Application data of the pong frame.
          */
-        void onPongFrame(String message);
+        void onPongFrame(byte[] payload);
 
         /**
          * Called when received close control frame or Connection is closed abnormally..
@@ -22,6 +22,15 @@ public interface FrameTx {
      */
     void sendTextAsync(String data);
 
+    /**
+     * Send non-partial TEXT data frame <b>under the rule of lock state</b>, and notify the completion.
+     *
+     * @param data Application data.
+     * @param callback Completion handler of the frame.
+     * @throws IllegalStateException If lock is held somewhere.
+     */
+    void sendTextAsync(String data, SendCallback callback);
+
     /**
      * Send TEXT data frame <b>regardless of lock state</b>.
      *
@@ -39,6 +48,15 @@ public interface FrameTx {
      */
     void sendBinaryAsync(byte[] data);
 
+    /**
+     * Send non-partial BINARY data frame <b>under the rule of lock state</b>, and notify the completion.
+     *
+     * @param data Application data.
+     * @param callback Completion handler of the frame.
+     * @throws IllegalStateException If lock is held somewhere.
+     */
+    void sendBinaryAsync(byte[] data, SendCallback callback);
+
     /**
      * Send BINARY data frame <b>regardless of lock state</b>.
      *
@@ -55,12 +73,27 @@ public interface FrameTx {
      */
     void sendPingAsync(String message);
 
+    /**
+     * Send PING frame, and notify the completion.
+     *
+     * @param message PING message.
+     * @param callback Completion handler of the frame.
+     */
+    void sendPingAsync(String message, SendCallback callback);
+
+    /**
+     * Send PING frame with binary application data.
+     *
+     * @param payload PING application data. Must not exceed 125 bytes.
+     */
+    void sendPingAsync(byte[] payload);
+
     /**
      * Send PONG frame as a response for PING message.
      *
-     * @param message message received with PING frame.
+     * @param payload Application data received with PING frame.
      */
-    void sendPongAsync(String message);
+    void sendPongAsync(byte[] payload);
 
     /**
      * Send CLOSE frame before closing connection.
@@ -0,0 +1,110 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time statistics measured by heartbeat ping frames of a connection.
+ *
+ * @see SessionRequest.Builder#setHeartbeat(int, int, TimeUnit, boolean)
+ */
+public final class HeartbeatStats {
+    /**
+     * Number of the histogram buckets.<br>
+     * Bucket {@code 0} counts round trips shorter than 1 msec, bucket {@code i} counts ones in [2^(i-1), 2^i) msec,
+     * and the last bucket counts all the longer ones.
+     */
+    public static final int HISTOGRAM_BUCKETS = 16;
+
+    /**
+     * Weight of the latest sample in the smoothed round trip time, as in TCP (RFC 6298).
+     */
+    private static final double EWMA_ALPHA = 0.125;
+
+    private long mSentCount;
+    private long mPongCount;
+    private long mMissedCount;
+    private long mLastRttNanos;
+    private long mSmoothedRttNanos;
+    private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+
+    HeartbeatStats() {
+    }
+
+    synchronized void onPingSent() {
+        mSentCount++;
+    }
+
+    synchronized void onPongReceived(long rttNanos) {
+        mPongCount++;
+        mLastRttNanos = rttNanos;
+        if (mPongCount == 1) {
+            mSmoothedRttNanos = rttNanos;
+        } else {
+            mSmoothedRttNanos += (long) (EWMA_ALPHA * (rttNanos - mSmoothedRttNanos));
+        }
+        mHistogram[bucketOf(rttNanos)]++;
+    }
+
+    synchronized void onPongMissed() {
+        mMissedCount++;
+    }
+
+    static int bucketOf(long rttNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(rttNanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * @return Number of heartbeat ping frames sent.
+     */
+    public synchronized long sentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return Number of heartbeat pong frames received in time.
+     */
+    public synchronized long pongCount() {
+        return mPongCount;
+    }
+
+    /**
+     * @return Number of heartbeat ping frames whose pong did not arrive in time.
+     */
+    public synchronized long missedCount() {
+        return mMissedCount;
+    }
+
+    /**
+     * @param unit Unit of the return value.
+     * @return Round trip time of the latest heartbeat, or {@code 0} if no pong is received yet.
+     */
+    public synchronized long lastRtt(TimeUnit unit) {
+        return unit.convert(mLastRttNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit Unit of the return value.
+     * @return Exponentially weighted moving average of the round trip time, or {@code 0} if no pong is received yet.
+     */
+    public synchronized long smoothedRtt(TimeUnit unit) {
+        return unit.convert(mSmoothedRttNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Snapshot of the round trip time histogram. Its length is {@link #HISTOGRAM_BUCKETS}.
+     */
+    public synchronized long[] histogram() {
+        return mHistogram.clone();
+    }
+}
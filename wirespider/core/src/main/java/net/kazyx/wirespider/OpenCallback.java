@@ -0,0 +1,34 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import java.io.IOException;
+
+/**
+ * Completion handler of {@link WebSocketFactory#openAsync(SessionRequest, OpenCallback)}.<br>
+ * Exactly one of the methods is called for each {@link OpenFuture}.
+ *
+ * @see OpenFuture#addCallback(OpenCallback)
+ */
+public interface OpenCallback {
+    /**
+     * Called when the opening handshake is completed.
+     *
+     * @param ws Connected WebSocket.
+     */
+    void onOpened(WebSocket ws);
+
+    /**
+     * Called when the connection is failed, timed out or cancelled.
+     *
+     * @param e Cause of the failure.
+     */
+    void onFailed(IOException e);
+}
@@ -0,0 +1,204 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import net.kazyx.wirespider.util.ArgumentCheck;
+import net.kazyx.wirespider.util.WsLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of {@link WebSocketFactory#openAsync(SessionRequest, OpenCallback)}.<br>
+ * This is completed on the selector thread when the opening handshake is finished,
+ * so no thread is blocked while the connection is being opened unless {@link #get()} is called.
+ */
+public final class OpenFuture implements Future<WebSocket> {
+    private static final String TAG = OpenFuture.class.getSimpleName();
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+
+    private final Object mLock = new Object();
+    private List<OpenCallback> mCallbacks = new ArrayList<>(1);
+    private WebSocket mWebSocket;
+    private IOException mFailure;
+    private boolean mCancelled;
+    private ClientWebSocket mAttempt;
+
+    OpenFuture() {
+    }
+
+    /**
+     * Add a completion handler.<br>
+     * Handlers are called on the thread which completes this future, typically the selector thread,
+     * or immediately on the calling thread if this is already done.
+     * They must not block, since it delays I/O of all connections on the selector thread.
+     *
+     * @param callback Completion handler.
+     * @return This future.
+     */
+    public OpenFuture addCallback(OpenCallback callback) {
+        ArgumentCheck.rejectNull(callback);
+        synchronized (mLock) {
+            if (mCallbacks != null) {
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        notify(callback);
+        return this;
+    }
+
+    /**
+     * Set the connection being opened, which is aborted on {@link #cancel(boolean)}.
+     *
+     * @param attempt Connection being opened.
+     * @return {@code false} if this is already done.
+     */
+    boolean setAttempt(ClientWebSocket attempt) {
+        synchronized (mLock) {
+            if (mCallbacks == null) {
+                return false;
+            }
+            mAttempt = attempt;
+            return true;
+        }
+    }
+
+    /**
+     * @param ws Connected WebSocket.
+     * @return {@code false} if this is already done. The caller is responsible to close the WebSocket.
+     */
+    boolean complete(WebSocket ws) {
+        List<OpenCallback> callbacks;
+        synchronized (mLock) {
+            if (mCallbacks == null) {
+                return false;
+            }
+            mWebSocket = ws;
+            callbacks = done();
+        }
+        notifyAll(callbacks);
+        return true;
+    }
+
+    /**
+     * @param failure Cause of the failure.
+     * @return {@code false} if this is already done.
+     */
+    boolean fail(IOException failure) {
+        List<OpenCallback> callbacks;
+        synchronized (mLock) {
+            if (mCallbacks == null) {
+                return false;
+            }
+            mFailure = failure;
+            callbacks = done();
+        }
+        notifyAll(callbacks);
+        return true;
+    }
+
+    /**
+     * Cancel opening the connection.<br>
+     * The connection being opened is closed whether or not {@code mayInterruptIfRunning} is set,
+     * since no thread is running for it.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<OpenCallback> callbacks;
+        ClientWebSocket attempt;
+        synchronized (mLock) {
+            if (mCallbacks == null) {
+                return false;
+            }
+            mCancelled = true;
+            mFailure = new IOException("Opening is cancelled");
+            attempt = mAttempt;
+            callbacks = done();
+        }
+        if (attempt != null) {
+            attempt.abortConnect(mFailure);
+        }
+        notifyAll(callbacks);
+        return true;
+    }
+
+    private List<OpenCallback> done() {
+        List<OpenCallback> callbacks = mCallbacks;
+        mCallbacks = null;
+        mAttempt = null;
+        mLatch.countDown();
+        return callbacks;
+    }
+
+    private void notifyAll(List<OpenCallback> callbacks) {
+        for (OpenCallback callback : callbacks) {
+            notify(callback);
+        }
+    }
+
+    private void notify(OpenCallback callback) {
+        try {
+            if (mWebSocket != null) {
+                callback.onOpened(mWebSocket);
+            } else {
+                callback.onFailed(mFailure);
+            }
+        } catch (RuntimeException e) {
+            WsLog.printStackTrace(TAG, e);
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mCancelled;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        return mLatch.getCount() == 0;
+    }
+
+    @Override
+    public WebSocket get() throws InterruptedException, ExecutionException {
+        mLatch.await();
+        return result();
+    }
+
+    @Override
+    public WebSocket get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private WebSocket result() throws ExecutionException {
+        synchronized (mLock) {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (mFailure != null) {
+                throw new ExecutionException(mFailure);
+            }
+            return mWebSocket;
+        }
+    }
+}
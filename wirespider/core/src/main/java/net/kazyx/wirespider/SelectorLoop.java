@@ -9,6 +9,8 @@
 
 package net.kazyx.wirespider;
 
+import java.util.concurrent.TimeUnit;
+
 public interface SelectorLoop {
     void destroy();
 
@@ -19,4 +21,46 @@ public interface SelectorLoop {
      * @param ops Selector operations.
      */
     void register(WebSocket ws, int ops);
+
+    /**
+     * @return Buffer pool dedicated to this loop.
+     */
+    BufferPool bufferPool();
+
+    /**
+     * Run the task on the thread of this loop.
+     *
+     * @param task Task to be run.
+     */
+    void execute(Runnable task);
+
+    /**
+     * Run the task on the thread of this loop after the given delay.<br>
+     * This method can be called on any thread.
+     *
+     * @param task Task to be run.
+     * @param delay Delay to run the task.
+     * @param unit Unit of {@code delay}.
+     * @return Handle to cancel the task.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * Get the resource shared by the connections on this loop.<br>
+     * It is created by the factory on the first call for each factory, and kept while this loop is alive.
+     * Resources implementing {@link java.io.Closeable} are closed when this loop is finished.
+     * This method can be called on any thread.
+     *
+     * @param factory Factory of the resource, which is also the key of the resource.
+     * @param <T> Type of the resource.
+     * @return Resource dedicated to this loop.
+     */
+    <T> T resource(ResourceFactory<T> factory);
+
+    interface ResourceFactory<T> {
+        /**
+         * @return Newly created resource for a selector loop. It must be thread safe.
+         */
+        T newResource();
+    }
 }
@@ -0,0 +1,30 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import java.io.IOException;
+
+/**
+ * Completion handler of a frame sent by {@link WebSocket}.<br>
+ * Exactly one of the methods is called for each frame.
+ */
+public interface SendCallback {
+    /**
+     * Called on the selector thread when the last byte of the frame is written to the socket.
+     */
+    void onSent();
+
+    /**
+     * Called when the connection is closed before the frame is written, or the frame is not sent at all.
+     *
+     * @param e Cause of the failure.
+     */
+    void onFailed(IOException e);
+}
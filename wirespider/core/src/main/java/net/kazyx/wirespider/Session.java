@@ -18,13 +18,25 @@ import java.nio.ByteBuffer;
  */
 public interface Session extends Closeable {
     /**
-     * Write data from the given {@link ByteBuffer}
+     * Write data from the given {@link ByteBuffer}.<br>
+     * Equivalent to {@code enqueueWrite(buffer, false);}
      *
      * @param buffer The buffer from which bytes are to be retrieved
      * @throws IOException If some other I/O error occurs
      */
     void enqueueWrite(ByteBuffer buffer) throws IOException;
 
+    /**
+     * Write data from the given {@link ByteBuffer}.<br>
+     * The buffer is owned by this session after this call, and released to the {@link BufferPool} when it is written.
+     *
+     * @param buffer The buffer from which bytes are to be retrieved
+     * @param calledOnSelectorThread {@code true} if this is called on the selector thread,
+     * so that the selector does not need to be woken up.
+     * @throws IOException If some other I/O error occurs
+     */
+    void enqueueWrite(ByteBuffer buffer, boolean calledOnSelectorThread) throws IOException;
+
     /**
      * Ready to write data into the SocketChannel.
      *
@@ -48,10 +60,17 @@ public interface Session extends Closeable {
 
     interface Listener {
         /**
-         * @param data Received application data.
+         * @param data Received application data. The receiver owns this buffer, and should release it to the {@link BufferPool} when it is consumed.
          */
         void onAppDataReceived(ByteBuffer data);
 
+        /**
+         * Called on the selector thread when application data passed to {@link #enqueueWrite(ByteBuffer)} is written to the socket.
+         *
+         * @param length Number of written bytes of the application data.
+         */
+        void onAppDataSent(int length);
+
         /**
          * Ready to handle application data.
          */
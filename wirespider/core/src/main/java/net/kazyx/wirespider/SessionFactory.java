@@ -17,8 +17,10 @@ public interface SessionFactory {
      * Create a new TCP connection wrapper with the given {@link SelectionKey}.
      *
      * @param key Selection key of the connection.
+     * @param loop Selector loop on which the connection is handled.
+     * @param req Request of the connection.
      * @return Newly created {@link Session}.
      * @throws IOException If failed to create new session.
      */
-    Session createNew(SelectionKey key) throws IOException;
+    Session createNew(SelectionKey key, SelectorLoop loop, SessionRequest req) throws IOException;
 }
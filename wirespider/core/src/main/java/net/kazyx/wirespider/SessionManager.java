@@ -9,11 +9,13 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.delegate.SslEngineFactory;
 import net.kazyx.wirespider.secure.SecureSessionFactory;
 import net.kazyx.wirespider.util.IOUtil;
 import net.kazyx.wirespider.util.SelectionKeyUtil;
 import net.kazyx.wirespider.util.WsLog;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
@@ -28,31 +30,234 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-class SessionManager implements SelectorLoop {
+/**
+ * Group of selector loops.<br>
+ * Each connection is assigned to the least loaded loop and stays on it until it is closed.
+ */
+class SessionManager {
     private static final String TAG = SessionManager.class.getSimpleName();
 
-    private final Map<SocketChannel, Session> mSessionMap = new ConcurrentHashMap<>();
+    private final DefaultSessionFactory mDefaultFactory = new DefaultSessionFactory();
+    private final SecureSessionFactory mSecureFactory = new SecureSessionFactory();
+
+    private final SelectorThread[] mSelectorThreads;
+
+    private final AtomicInteger mNextIndex = new AtomicInteger();
+
+    /**
+     * @param provider Provider of the selectors.
+     * @param numThreads Number of selector threads.
+     * @throws IOException Failed to open selector.
+     */
+    SessionManager(SelectorProvider provider, int numThreads) throws IOException {
+        mSelectorThreads = new SelectorThread[numThreads];
+        try {
+            for (int i = 0; i < numThreads; i++) {
+                mSelectorThreads[i] = new SelectorThread(provider.openSelector(), "ws-selector-" + i);
+            }
+        } catch (IOException e) {
+            for (SelectorThread thread : mSelectorThreads) {
+                if (thread != null) {
+                    IOUtil.close(thread.mSelector);
+                }
+            }
+            throw e;
+        }
+        for (SelectorThread thread : mSelectorThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * @param bytes Maximum number of bytes to be written into a socket on a single write readiness.
+     * @see DefaultSession#onFlushReady()
+     */
+    void setMaxBytesPerFlush(int bytes) {
+        mDefaultFactory.setMaxBytesPerFlush(bytes);
+    }
+
+    /**
+     * @param executor Executor of the delegated tasks of SSLEngine. {@code null} to run them on the selector threads.
+     * @see SecureSessionFactory#setDelegatedTaskExecutor(Executor)
+     */
+    void setDelegatedTaskExecutor(Executor executor) {
+        mSecureFactory.setDelegatedTaskExecutor(executor);
+    }
 
-    private final SessionFactory mDefaultFactory = new DefaultSessionFactory();
-    private final SessionFactory mSecureFactory = new SecureSessionFactory();
+    /**
+     * @param size Maximum number of cached TLS sessions.
+     * @param timeoutSeconds Lifetime of cached TLS sessions in seconds.
+     * @see SecureSessionFactory#setSessionCache(int, int)
+     */
+    void setTlsSessionCache(int size, int timeoutSeconds) {
+        mSecureFactory.setSessionCache(size, timeoutSeconds);
+    }
+
+    /**
+     * @param factory Factory of SSLEngine. {@code null} to use the default one.
+     * @see SecureSessionFactory#setSslEngineFactory(SslEngineFactory)
+     */
+    void setSslEngineFactory(SslEngineFactory factory) {
+        mSecureFactory.setSslEngineFactory(factory);
+    }
 
-    SessionManager(SelectorProvider provider) throws IOException {
-        mSelectorThread = new SelectorThread(provider.openSelector());
-        mSelectorThread.start();
+    /**
+     * @param coalesce {@code true} to gather queued messages into full TLS records.
+     * @see SecureSessionFactory#setRecordCoalescing(boolean)
+     */
+    void setTlsRecordCoalescing(boolean coalesce) {
+        mSecureFactory.setRecordCoalescing(coalesce);
     }
 
-    @Override
-    public void destroy() {
-        mSelectorThread.interrupt();
+    /**
+     * @return Number of TLS handshakes which resumed a cached session.
+     */
+    long tlsResumedHandshakeCount() {
+        return mSecureFactory.resumedHandshakeCount();
+    }
+
+    /**
+     * @return Number of TLS handshakes which established a new session.
+     */
+    long tlsFullHandshakeCount() {
+        return mSecureFactory.fullHandshakeCount();
+    }
+
+    /**
+     * Replace buffer pools of all loops with the ones created by the given factory.
+     *
+     * @param factory Factory of the buffer pools.
+     */
+    void setBufferPoolFactory(BufferPool.Factory factory) {
+        for (SelectorThread thread : mSelectorThreads) {
+            thread.mBufferPool = factory.newBufferPool();
+        }
     }
 
-    private class SelectorThread extends Thread {
+    void destroy() {
+        for (SelectorThread thread : mSelectorThreads) {
+            thread.destroy();
+        }
+    }
+
+    /**
+     * Select a loop for a new connection.<br>
+     * The least loaded loop is chosen. Ties are broken in round-robin order.
+     *
+     * @return Selector loop to which a new connection should be pinned.
+     */
+    SelectorLoop nextLoop() {
+        int start = (mNextIndex.getAndIncrement() & Integer.MAX_VALUE) % mSelectorThreads.length;
+        SelectorThread selected = mSelectorThreads[start];
+        int minLoad = selected.load();
+        for (int i = 1; i < mSelectorThreads.length && minLoad != 0; i++) {
+            SelectorThread candidate = mSelectorThreads[(start + i) % mSelectorThreads.length];
+            int load = candidate.load();
+            if (load < minLoad) {
+                selected = candidate;
+                minLoad = load;
+            }
+        }
+        return selected;
+    }
+
+    private class SelectorThread implements SelectorLoop, Runnable {
+        private final Thread mThread;
         private final Selector mSelector;
 
-        SelectorThread(Selector selector) {
-            super("ws-selector");
+        private final Map<SocketChannel, Session> mSessionMap = new ConcurrentHashMap<>();
+
+        /**
+         * Number of channels registered to the selector, published by the selector thread.
+         */
+        private volatile int mRegisteredCount = 0;
+
+        /**
+         * Number of channels waiting to be registered to the selector.
+         */
+        private final AtomicInteger mPendingCount = new AtomicInteger();
+
+        private volatile BufferPool mBufferPool;
+
+        private final ConcurrentHashMap<ResourceFactory<?>, Object> mResources = new ConcurrentHashMap<>();
+
+        /**
+         * Accessed only on the selector thread.
+         */
+        private final TimerWheel mTimerWheel = new TimerWheel();
+
+        SelectorThread(Selector selector, String name) {
+            mThread = new Thread(this, name);
             mSelector = selector;
+            mBufferPool = SizeClassBufferPool.DEFAULT_FACTORY.newBufferPool();
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        int load() {
+            return mRegisteredCount + mPendingCount.get();
+        }
+
+        @Override
+        public void destroy() {
+            mThread.interrupt();
+        }
+
+        @Override
+        public void register(WebSocket ws, int ops) {
+            registerNewChannel(ws.socketChannel(), ops, ws);
+        }
+
+        @Override
+        public BufferPool bufferPool() {
+            return mBufferPool;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T resource(ResourceFactory<T> factory) {
+            Object resource = mResources.get(factory);
+            if (resource == null) {
+                Object created = factory.newResource();
+                resource = mResources.putIfAbsent(factory, created);
+                if (resource == null) {
+                    resource = created;
+                } else if (created instanceof Closeable) {
+                    // Lost the race.
+                    IOUtil.close((Closeable) created);
+                }
+            }
+            return (T) resource;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (mQueue) {
+                mQueue.add(task);
+            }
+            mSelector.wakeup();
+        }
+
+        @Override
+        public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+            final TimerWheel.Timer timer = TimerWheel.newTimer(task, System.nanoTime() + unit.toNanos(delay));
+            if (Thread.currentThread() == mThread) {
+                mTimerWheel.add(timer);
+            } else {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mTimerWheel.add(timer);
+                    }
+                });
+            }
+            return timer;
         }
 
         @Override
@@ -76,13 +281,18 @@ class SessionManager implements SelectorLoop {
                                         String scheme = ws.remoteUri().getScheme().toLowerCase(Locale.US);
                                         SessionFactory factory = WebSocket.WSS_SCHEME.equals(scheme) ? mSecureFactory : mDefaultFactory;
                                         SelectionKeyUtil.interestOps(key, SelectionKey.OP_READ);
-                                        final Session session = factory.createNew(key);
+                                        final Session session = factory.createNew(key, this, ws.request());
                                         session.setListener(new Session.Listener() {
                                             @Override
                                             public void onAppDataReceived(ByteBuffer data) {
                                                 ws.socketChannelProxy().onReceived(data);
                                             }
 
+                                            @Override
+                                            public void onAppDataSent(int length) {
+                                                ws.socketChannelProxy().onSent(length);
+                                            }
+
                                             @Override
                                             public void onConnected() {
                                                 ws.socketChannelProxy().onConnected(session);
@@ -132,25 +342,41 @@ class SessionManager implements SelectorLoop {
                 }
                 mQueue.clear();
                 IOUtil.close(mSelector);
+                for (Object resource : mResources.values()) {
+                    if (resource instanceof Closeable) {
+                        IOUtil.close((Closeable) resource);
+                    }
+                }
             }
         }
 
         private final List<Runnable> mQueue = new ArrayList<>();
+        private final List<Runnable> mRunningQueue = new ArrayList<>();
 
         private boolean select() {
             try {
-                mSelector.select();
+                // Wake up on the next expiration of the timers, or wait forever if there is no timer.
+                mSelector.select(mTimerWheel.millisToNextExpiration(System.nanoTime()));
                 //Log.d(TAG, "selected: " + selected);
-                if (this.isInterrupted()) {
+                if (mThread.isInterrupted()) {
                     return false;
                 }
                 synchronized (mQueue) {
-                    Iterator<Runnable> itr = mQueue.iterator();
-                    while (itr.hasNext()) {
-                        itr.next().run();
-                        itr.remove();
+                    mRunningQueue.addAll(mQueue);
+                    mQueue.clear();
+                }
+                // Run outside of the lock so that tasks can enqueue other tasks.
+                for (Runnable task : mRunningQueue) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // Failure of a task must not stop the loop nor drop the following tasks.
+                        WsLog.printStackTrace(TAG, e);
                     }
                 }
+                mRunningQueue.clear();
+                mTimerWheel.expire(System.nanoTime());
+                mRegisteredCount = mSelector.keys().size();
                 return true;
             } catch (IOException e) {
                 WsLog.printStackTrace(TAG, e);
@@ -159,26 +385,19 @@ class SessionManager implements SelectorLoop {
         }
 
         void registerNewChannel(final SocketChannel channel, final int ops, final WebSocket ws) {
-            synchronized (mQueue) {
-                mQueue.add(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            channel.register(mSelector, ops, ws);
-                        } catch (ClosedChannelException e) {
-                            WsLog.printStackTrace(TAG, e);
-                        }
+            mPendingCount.incrementAndGet();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        channel.register(mSelector, ops, ws);
+                    } catch (ClosedChannelException e) {
+                        WsLog.printStackTrace(TAG, e);
+                    } finally {
+                        mPendingCount.decrementAndGet();
                     }
-                });
-            }
-            mSelector.wakeup();
+                }
+            });
         }
     }
-
-    private final SelectorThread mSelectorThread;
-
-    @Override
-    public void register(WebSocket ws, int ops) {
-        mSelectorThread.registerNewChannel(ws.socketChannel(), ops, ws);
-    }
 }
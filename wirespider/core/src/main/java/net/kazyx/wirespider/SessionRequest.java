@@ -11,6 +11,7 @@ package net.kazyx.wirespider;
 
 import net.kazyx.wirespider.delegate.HandshakeResponseHandler;
 import net.kazyx.wirespider.delegate.SocketBinder;
+import net.kazyx.wirespider.delegate.SslEngineFactory;
 import net.kazyx.wirespider.extension.ExtensionRequest;
 import net.kazyx.wirespider.http.HttpHeader;
 import net.kazyx.wirespider.util.ArgumentCheck;
@@ -37,6 +38,15 @@ public final class SessionRequest {
         mHsHandler = builder.hsHandler;
         mConnectionTimeout = builder.connTimeout;
         mConnTimeoutUnit = builder.connTimeoutUnit;
+        mIdleTimeout = builder.idleTimeout;
+        mIdleTimeoutUnit = builder.idleTimeoutUnit;
+        mHeartbeatInterval = builder.heartbeatInterval;
+        mPongTimeout = builder.pongTimeout;
+        mHeartbeatUnit = builder.heartbeatUnit;
+        mCloseOnPongMiss = builder.closeOnPongMiss;
+        mLowWatermark = builder.lowWatermark;
+        mHighWatermark = builder.highWatermark;
+        mSslEngineFactory = builder.sslEngineFactory;
     }
 
     private URI mUri;
@@ -99,6 +109,60 @@ public final class SessionRequest {
         return mConnTimeoutUnit;
     }
 
+    private int mIdleTimeout;
+
+    public int idleTimeout() {
+        return mIdleTimeout;
+    }
+
+    private TimeUnit mIdleTimeoutUnit;
+
+    public TimeUnit idleTimeoutUnit() {
+        return mIdleTimeoutUnit;
+    }
+
+    private int mHeartbeatInterval;
+
+    public int heartbeatInterval() {
+        return mHeartbeatInterval;
+    }
+
+    private int mPongTimeout;
+
+    public int pongTimeout() {
+        return mPongTimeout;
+    }
+
+    private TimeUnit mHeartbeatUnit;
+
+    public TimeUnit heartbeatUnit() {
+        return mHeartbeatUnit;
+    }
+
+    private boolean mCloseOnPongMiss;
+
+    public boolean closeOnPongMiss() {
+        return mCloseOnPongMiss;
+    }
+
+    private int mLowWatermark;
+
+    public int writeBufferLowWatermark() {
+        return mLowWatermark;
+    }
+
+    private int mHighWatermark;
+
+    public int writeBufferHighWatermark() {
+        return mHighWatermark;
+    }
+
+    private SslEngineFactory mSslEngineFactory;
+
+    public SslEngineFactory sslEngineFactory() {
+        return mSslEngineFactory;
+    }
+
     public static class Builder {
         private final URI uri;
         private final WebSocketHandler handler;
@@ -208,6 +272,102 @@ public final class SessionRequest {
             return this;
         }
 
+        private int idleTimeout = 0;
+        private TimeUnit idleTimeoutUnit = TimeUnit.MILLISECONDS;
+
+        /**
+         * Set timeout to close the connection when no data is received from the remote. It is set infinite by default.<br>
+         * The connection is closed with {@link CloseStatusCode#GOING_AWAY}.
+         *
+         * @param timeout Timeout value.
+         * @param unit Timeout unit.
+         * @return This builder
+         * @throws IllegalArgumentException If {@code timeout} is zero or negative value, or {@code unit} is {@code null}.
+         */
+        public Builder setIdleTimeout(int timeout, TimeUnit unit) {
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("Timeout value must be positive");
+            }
+            ArgumentCheck.rejectNull(unit);
+
+            this.idleTimeout = timeout;
+            this.idleTimeoutUnit = unit;
+            return this;
+        }
+
+        private int heartbeatInterval = 0;
+        private int pongTimeout = 0;
+        private TimeUnit heartbeatUnit = TimeUnit.MILLISECONDS;
+        private boolean closeOnPongMiss = false;
+
+        /**
+         * Send heartbeat ping frames periodically to measure round trip time and detect dead connections. It is disabled by default.<br>
+         * Pong frames for the heartbeat are consumed by the library and not notified to {@link WebSocketHandler#onPong(String)}.
+         *
+         * @param interval Interval of the heartbeat ping frames.
+         * @param pongTimeout Timeout to wait for the pong frame. Must not be longer than {@code interval}.
+         * @param unit Unit of {@code interval} and {@code pongTimeout}.
+         * @param closeOnMiss {@code true} to close the connection with {@link CloseStatusCode#ABNORMAL_CLOSURE}
+         * when a pong frame does not arrive in time.
+         * @return This builder
+         * @throws IllegalArgumentException If {@code interval} or {@code pongTimeout} is zero or negative value,
+         * {@code pongTimeout} is longer than {@code interval}, or {@code unit} is {@code null}.
+         * @see WebSocket#heartbeatStats()
+         */
+        public Builder setHeartbeat(int interval, int pongTimeout, TimeUnit unit, boolean closeOnMiss) {
+            if (interval <= 0 || pongTimeout <= 0) {
+                throw new IllegalArgumentException("Interval and timeout must be positive");
+            }
+            if (pongTimeout > interval) {
+                throw new IllegalArgumentException("Pong timeout must not be longer than interval");
+            }
+            ArgumentCheck.rejectNull(unit);
+
+            this.heartbeatInterval = interval;
+            this.pongTimeout = pongTimeout;
+            this.heartbeatUnit = unit;
+            this.closeOnPongMiss = closeOnMiss;
+            return this;
+        }
+
+        private int lowWatermark = 1024 * 32;
+        private int highWatermark = 1024 * 64;
+
+        /**
+         * Set watermarks of the outgoing data buffered in the connection.<br>
+         * The connection gets unwritable when the buffered amount exceeds {@code high},
+         * and gets writable again when it falls to {@code low}.
+         * 32 KiB and 64 KiB by default.
+         *
+         * @param low Low watermark in bytes.
+         * @param high High watermark in bytes.
+         * @return This builder.
+         * @throws IllegalArgumentException If {@code low} is negative value or {@code high} is smaller than {@code low}.
+         * @see WebSocketHandler#onWritabilityChanged(boolean)
+         */
+        public Builder setWriteBufferWatermarks(int low, int high) {
+            if (low < 0 || high < low) {
+                throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high");
+            }
+            this.lowWatermark = low;
+            this.highWatermark = high;
+            return this;
+        }
+
+        private SslEngineFactory sslEngineFactory;
+
+        /**
+         * Set {@link SslEngineFactory} to be used for secure WebSocket connection.<br>
+         * This overrides the one set to {@link WebSocketFactory#setSslEngineFactory(SslEngineFactory)}.
+         *
+         * @param factory Factory of SSLEngine.
+         * @return This builder.
+         */
+        public Builder setSslEngineFactory(SslEngineFactory factory) {
+            this.sslEngineFactory = factory;
+            return this;
+        }
+
         /**
          * Create a {@link SessionRequest} with current configurations.
          *
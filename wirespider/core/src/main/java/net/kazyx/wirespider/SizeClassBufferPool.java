@@ -0,0 +1,121 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * {@link BufferPool} which keeps released buffers per power-of-two size class.
+ * <p>
+ * Buffers larger than the maximum size class are allocated on the heap on each request and never pooled.
+ * </p>
+ */
+public class SizeClassBufferPool implements BufferPool {
+    private static final int MIN_SIZE_SHIFT = 6; // 64 bytes
+
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 64;
+
+    public static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 32;
+
+    private final boolean mDirect;
+    private final int mMaxBufferSize;
+    private final int mMaxBuffersPerClass;
+    private final ArrayDeque<ByteBuffer>[] mClasses;
+
+    /**
+     * Pool of direct buffers up to {@link #DEFAULT_MAX_BUFFER_SIZE} bytes.
+     */
+    public SizeClassBufferPool() {
+        this(true, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param direct {@code true} to pool direct buffers, {@code false} to pool heap buffers.
+     * @param maxBufferSize Maximum size of the pooled buffers. Rounded up to a power of two.
+     * @param maxBuffersPerClass Maximum number of buffers retained for each size class.
+     * @throws IllegalArgumentException If {@code maxBufferSize} or {@code maxBuffersPerClass} is zero or negative value.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SizeClassBufferPool(boolean direct, int maxBufferSize, int maxBuffersPerClass) {
+        if (maxBufferSize < 1 || maxBuffersPerClass < 1) {
+            throw new IllegalArgumentException("Buffer size and number of buffers must be positive");
+        }
+        mDirect = direct;
+        mMaxBuffersPerClass = maxBuffersPerClass;
+
+        int numClasses = classIndex(maxBufferSize) + 1;
+        mMaxBufferSize = classSize(numClasses - 1);
+        mClasses = new ArrayDeque[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            mClasses[i] = new ArrayDeque<>(maxBuffersPerClass);
+        }
+    }
+
+    @Override
+    public ByteBuffer acquire(int capacity) {
+        if (capacity > mMaxBufferSize) {
+            // Large buffers are rare and would pin a lot of direct memory.
+            return ByteBuffer.allocate(capacity);
+        }
+
+        int index = classIndex(capacity);
+        ByteBuffer buffer;
+        ArrayDeque<ByteBuffer> queue = mClasses[index];
+        synchronized (queue) {
+            buffer = queue.pollFirst();
+        }
+        if (buffer == null) {
+            int size = classSize(index);
+            buffer = mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > mMaxBufferSize || buffer.isDirect() != mDirect || buffer.isReadOnly()
+                || Integer.bitCount(capacity) != 1 || capacity < classSize(0)) {
+            return;
+        }
+        if (!mDirect && (buffer.arrayOffset() != 0 || buffer.array().length != capacity)) {
+            // Slice of another array.
+            return;
+        }
+
+        buffer.clear();
+        ArrayDeque<ByteBuffer> queue = mClasses[classIndex(capacity)];
+        synchronized (queue) {
+            if (queue.size() < mMaxBuffersPerClass) {
+                queue.addFirst(buffer);
+            }
+        }
+    }
+
+    private static int classIndex(int capacity) {
+        if (capacity <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SIZE_SHIFT;
+    }
+
+    private static int classSize(int index) {
+        return 1 << (index + MIN_SIZE_SHIFT);
+    }
+
+    static final Factory DEFAULT_FACTORY = new Factory() {
+        @Override
+        public BufferPool newBufferPool() {
+            return new SizeClassBufferPool();
+        }
+    };
+}
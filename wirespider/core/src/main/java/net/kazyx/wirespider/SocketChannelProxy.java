@@ -14,19 +14,113 @@ import net.kazyx.wirespider.util.WsLog;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 class SocketChannelProxy implements SocketChannelWriter {
     private static final String TAG = SocketChannelProxy.class.getSimpleName();
 
     private Session mSession;
     private final Listener mListener;
+    private final SelectorLoop mLoop;
 
-    private boolean mIsClosed = false;
+    private volatile boolean mIsClosed = false;
 
-    SocketChannelProxy(Listener listener) {
+    private final AtomicLong mBufferedAmount = new AtomicLong();
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+
+    private final Object mSendLock = new Object();
+
+    /**
+     * Cumulative number of bytes enqueued to and written by the session. Guarded by {@link #mSendLock}.
+     */
+    private long mEnqueuedBytes = 0;
+    private long mSentBytes = 0;
+
+    private final Deque<PendingSend> mPendingSends = new ArrayDeque<>();
+
+    private final Object mWritabilityLock = new Object();
+    private volatile boolean mIsWritable = true;
+
+    /**
+     * Writability lastly notified to the listener. Accessed only on the selector thread.
+     */
+    private boolean mNotifiedWritable = true;
+
+    /**
+     * @param listener Listener of the socket events.
+     * @param loop Selector loop to which the socket is assigned.
+     * @param lowWatermark Buffered amount at or below which the socket gets writable again.
+     * @param highWatermark Buffered amount above which the socket gets unwritable.
+     */
+    SocketChannelProxy(Listener listener, SelectorLoop loop, int lowWatermark, int highWatermark) {
         mListener = listener;
+        mLoop = loop;
+        mLowWatermark = lowWatermark;
+        mHighWatermark = highWatermark;
+    }
+
+    /**
+     * @return Number of bytes which are queued but not written to the socket yet.
+     */
+    long bufferedAmount() {
+        return mBufferedAmount.get();
+    }
+
+    /**
+     * @return {@code false} after the buffered amount exceeds the high watermark until it falls to the low watermark.
+     */
+    boolean isWritable() {
+        return mIsWritable;
+    }
+
+    /**
+     * Called on the selector thread when the queued data is written to the socket.
+     *
+     * @param length Number of written bytes.
+     */
+    void onSent(int length) {
+        long amount = mBufferedAmount.addAndGet(-length);
+        if (!mIsWritable && amount <= mLowWatermark) {
+            updateWritability();
+        }
+        completeSends(length);
+    }
+
+    private void updateWritability() {
+        synchronized (mWritabilityLock) {
+            long amount = mBufferedAmount.get();
+            boolean writable;
+            if (mIsWritable) {
+                writable = amount <= mHighWatermark;
+            } else {
+                writable = amount <= mLowWatermark;
+            }
+            if (writable == mIsWritable) {
+                return;
+            }
+            mIsWritable = writable;
+        }
+
+        // Notify on the selector thread to keep the order of changes.
+        mLoop.execute(mWritabilityNotifier);
     }
 
+    private final Runnable mWritabilityNotifier = new Runnable() {
+        @Override
+        public void run() {
+            boolean writable = mIsWritable;
+            if (writable != mNotifiedWritable && !mIsClosed) {
+                mNotifiedWritable = writable;
+                mListener.onWritabilityChanged(writable);
+            }
+        }
+    };
+
     void onConnected(Session session) {
         mSession = session;
         mListener.onSocketConnected();
@@ -59,22 +153,101 @@ class SocketChannelProxy implements SocketChannelWriter {
 
     @Override
     public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
+        write(data, calledOnSelectorThread, null);
+    }
+
+    @Override
+    public void writeAsync(ByteBuffer data, SendCallback callback) {
+        write(data, false, callback);
+    }
+
+    private void write(ByteBuffer data, boolean calledOnSelectorThread, SendCallback callback) {
         // Log.d(TAG, "writeAsync");
         if (mIsClosed || mSession == null) {
             WsLog.d(TAG, "Quit writeAsync due to closed state");
+            mLoop.bufferPool().release(data);
+            if (callback != null) {
+                callback.onFailed(new IOException("Connection is closed"));
+            }
             return;
         }
+        int length = data.remaining();
+        long amount = mBufferedAmount.addAndGet(length);
+        if (mIsWritable && amount > mHighWatermark) {
+            updateWritability();
+        }
         try {
-            mSession.enqueueWrite(data);
+            synchronized (mSendLock) {
+                mSession.enqueueWrite(data, calledOnSelectorThread);
+                mEnqueuedBytes += length;
+                if (callback != null) {
+                    mPendingSends.addLast(new PendingSend(mEnqueuedBytes, callback));
+                }
+            }
         } catch (IOException e) {
+            // The data is never written, so that it must not remain in the buffered amount.
+            amount = mBufferedAmount.addAndGet(-length);
+            if (!mIsWritable && amount <= mLowWatermark) {
+                updateWritability();
+            }
+            if (callback != null) {
+                callback.onFailed(e);
+            }
             IOUtil.close(mSession);
             onClosed();
         }
     }
 
+    private void completeSends(int length) {
+        List<SendCallback> completed = null;
+        synchronized (mSendLock) {
+            mSentBytes += length;
+            while (!mPendingSends.isEmpty() && mPendingSends.getFirst().mEndOffset <= mSentBytes) {
+                if (completed == null) {
+                    completed = new ArrayList<>();
+                }
+                completed.add(mPendingSends.removeFirst().mCallback);
+            }
+        }
+        if (completed != null) {
+            for (SendCallback callback : completed) {
+                callback.onSent();
+            }
+        }
+    }
+
+    private void failPendingSends() {
+        List<PendingSend> failed;
+        synchronized (mSendLock) {
+            if (mPendingSends.isEmpty()) {
+                return;
+            }
+            failed = new ArrayList<>(mPendingSends);
+            mPendingSends.clear();
+        }
+        IOException e = new IOException("Connection is closed before the data is written");
+        for (PendingSend send : failed) {
+            send.mCallback.onFailed(e);
+        }
+    }
+
     void close() {
         mIsClosed = true;
         IOUtil.close(mSession);
+        failPendingSends();
+    }
+
+    private static class PendingSend {
+        /**
+         * Cumulative number of enqueued bytes at the end of the data.
+         */
+        private final long mEndOffset;
+        private final SendCallback mCallback;
+
+        PendingSend(long endOffset, SendCallback callback) {
+            mEndOffset = endOffset;
+            mCallback = callback;
+        }
     }
 
     interface Listener {
@@ -94,5 +267,13 @@ class SocketChannelProxy implements SocketChannelWriter {
          * @param data Received data.
          */
         void onDataReceived(ByteBuffer data);
+
+        /**
+         * Called on the selector thread when the writability is changed.
+         *
+         * @param writable {@code true} if the buffered amount falls to the low watermark,
+         * {@code false} if the buffered amount exceeds the high watermark.
+         */
+        void onWritabilityChanged(boolean writable);
     }
 }
@@ -27,4 +27,12 @@ public interface SocketChannelWriter {
      * @param calledOnSelectorThread {@code true} to invoke this on the selector's thread.
      */
     void writeAsync(ByteBuffer data, boolean calledOnSelectorThread);
+
+    /**
+     * Write data into the SocketChannel, and notify the completion.
+     *
+     * @param data Data to write.
+     * @param callback Called when the whole data is written or failed to be written. Might be {@code null}.
+     */
+    void writeAsync(ByteBuffer data, SendCallback callback);
 }
@@ -0,0 +1,30 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+
+package net.kazyx.wirespider;
+
+/**
+ * Handle of a task scheduled on the selector loop.
+ *
+ * @see WebSocket#schedule(Runnable, long, java.util.concurrent.TimeUnit)
+ */
+public interface Timeout {
+    /**
+     * Cancel the task. This method can be called on any thread.
+     *
+     * @return {@code false} if the task is already run or cancelled.
+     */
+    boolean cancel();
+
+    /**
+     * @return {@code true} if the task is cancelled before it runs.
+     */
+    boolean isCancelled();
+}
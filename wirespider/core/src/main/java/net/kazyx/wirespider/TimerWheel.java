@@ -0,0 +1,191 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+
+package net.kazyx.wirespider;
+
+import net.kazyx.wirespider.util.WsLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed wheel of timers driven by the selector loop.<br>
+ * Timers are hashed into buckets by their deadline tick, so that scheduling and cancellation cost O(1)
+ * regardless of the number of timers. Expiration is accurate to a tick.<br>
+ * Except {@link Timeout#cancel()}, all methods must be called on the selector thread.
+ */
+class TimerWheel {
+    private static final String TAG = TimerWheel.class.getSimpleName();
+
+    static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long mTickNanos;
+    private final int mMask;
+    private final List<Timer>[] mBuckets;
+    private final long mStartTime;
+
+    /**
+     * Last tick whose timers are expired.
+     */
+    private long mCurrentTick = 0;
+
+    /**
+     * Number of timers in the buckets, including the cancelled ones not removed yet.
+     */
+    private int mSize = 0;
+
+    TimerWheel() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE, System.nanoTime());
+    }
+
+    /**
+     * @param tickNanos Duration of a tick in nanoseconds.
+     * @param wheelSize Number of buckets. Must be a power of two.
+     * @param startTime Time in nanoseconds of the tick zero.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tickNanos, int wheelSize, long startTime) {
+        if (tickNanos < 1 || wheelSize < 1 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Tick must be positive and wheel size must be a power of two");
+        }
+        mTickNanos = tickNanos;
+        mMask = wheelSize - 1;
+        mStartTime = startTime;
+        mBuckets = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            mBuckets[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Create a timer which is added to this wheel by {@link #add(Timer)}.<br>
+     * This method can be called on any thread.
+     *
+     * @param task Task to be run on expiration.
+     * @param deadline Time in nanoseconds when the task should be run.
+     * @return Newly created timer.
+     */
+    static Timer newTimer(Runnable task, long deadline) {
+        return new Timer(task, deadline);
+    }
+
+    /**
+     * @param timer Timer to be expired on its deadline. If it is already past, expired on the next tick.
+     */
+    void add(Timer timer) {
+        if (timer.isCancelled()) {
+            return;
+        }
+        long elapsed = timer.mDeadline - mStartTime;
+        long tick = elapsed <= 0 ? 0 : (elapsed + mTickNanos - 1) / mTickNanos;
+        timer.mTick = Math.max(tick, mCurrentTick + 1);
+        mBuckets[(int) (timer.mTick & mMask)].add(timer);
+        mSize++;
+    }
+
+    /**
+     * Run tasks of the timers whose deadline tick has passed.
+     *
+     * @param now Current time in nanoseconds.
+     */
+    void expire(long now) {
+        if (mSize == 0) {
+            mCurrentTick = Math.max(mCurrentTick, (now - mStartTime) / mTickNanos);
+            return;
+        }
+        long target = (now - mStartTime) / mTickNanos;
+        long last = Math.min(target, mCurrentTick + mBuckets.length);
+        List<Timer> expired = null;
+        for (long tick = mCurrentTick + 1; tick <= last; tick++) {
+            List<Timer> bucket = mBuckets[(int) (tick & mMask)];
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Timer timer = bucket.get(i);
+                if (timer.isCancelled() || timer.mTick <= target) {
+                    // Swap-remove since the order in a bucket does not matter.
+                    bucket.set(i, bucket.get(bucket.size() - 1));
+                    bucket.remove(bucket.size() - 1);
+                    mSize--;
+                    if (!timer.isCancelled()) {
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(timer);
+                    }
+                }
+            }
+        }
+        mCurrentTick = Math.max(mCurrentTick, target);
+
+        if (expired != null) {
+            // Run after the buckets are updated, so that tasks can schedule other timers.
+            for (Timer timer : expired) {
+                timer.expire();
+            }
+        }
+    }
+
+    /**
+     * @param now Current time in nanoseconds.
+     * @return Milliseconds until the next tick which has timers, or {@code 0} if there is no timer.
+     */
+    long millisToNextExpiration(long now) {
+        if (mSize == 0) {
+            return 0;
+        }
+        long tick = mCurrentTick + 1;
+        for (int i = 0; i < mBuckets.length; i++, tick++) {
+            if (!mBuckets[(int) (tick & mMask)].isEmpty()) {
+                break;
+            }
+        }
+        long nanos = mStartTime + tick * mTickNanos - now;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    static final class Timer implements Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private final AtomicInteger mState = new AtomicInteger(INIT);
+        private long mTick;
+
+        private Timer(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            return mState.compareAndSet(INIT, CANCELLED);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mState.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (!mState.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                WsLog.printStackTrace(TAG, e);
+            }
+        }
+    }
+}
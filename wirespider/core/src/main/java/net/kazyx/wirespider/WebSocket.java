@@ -13,6 +13,7 @@ import net.kazyx.wirespider.exception.HandshakeFailureException;
 import net.kazyx.wirespider.exception.PayloadUnderflowException;
 import net.kazyx.wirespider.extension.Extension;
 import net.kazyx.wirespider.util.ArgumentCheck;
+import net.kazyx.wirespider.util.BinaryUtil;
 import net.kazyx.wirespider.util.IOUtil;
 import net.kazyx.wirespider.util.WsLog;
 
@@ -22,6 +23,7 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generic WebSocket connection.
@@ -29,16 +31,40 @@ import java.util.List;
 public abstract class WebSocket implements Closeable {
     private static final String TAG = WebSocket.class.getSimpleName();
 
+    /**
+     * Time to wait for the close frame from the remote after sending a close frame.
+     */
+    private static final long CLOSE_HANDSHAKE_TIMEOUT_MILLIS = 500;
+
     public static final String WSS_SCHEME = "wss";
     public static final int DEFAULT_WS_PORT = 80;
     public static final int DEFAULT_WSS_PORT = 443;
 
     private final SelectorLoop mLoop;
 
-    final SelectorLoop selectorLoop() {
+    /**
+     * @return Selector loop to which this connection is assigned.
+     */
+    protected final SelectorLoop selectorLoop() {
         return mLoop;
     }
 
+    /**
+     * @return Buffer pool of the selector loop to which this connection is assigned.
+     */
+    protected final BufferPool bufferPool() {
+        return mLoop.bufferPool();
+    }
+
+    private final SessionRequest mRequest;
+
+    /**
+     * @return Request with which this connection is opened.
+     */
+    final SessionRequest request() {
+        return mRequest;
+    }
+
     private final URI mURI;
 
     public final URI remoteUri() {
@@ -91,13 +117,19 @@ public abstract class WebSocket implements Closeable {
     }
 
     WebSocket(SessionRequest req, SelectorLoop loop, SocketChannel ch) {
+        mRequest = req;
         mURI = req.uri();
         mCallbackHandler = req.handler();
         mMaxResponsePayloadSize = req.maxResponsePayloadSizeInBytes();
+        mIdleTimeoutNanos = req.idleTimeoutUnit().toNanos(req.idleTimeout());
+        mHeartbeatIntervalNanos = req.heartbeatUnit().toNanos(req.heartbeatInterval());
+        mPongTimeoutNanos = req.heartbeatUnit().toNanos(req.pongTimeout());
+        mCloseOnPongMiss = req.closeOnPongMiss();
         mLoop = loop;
         mSocketChannel = ch;
 
-        mSocketChannelProxy = new SocketChannelProxy(mChannelProxyListener);
+        mSocketChannelProxy = new SocketChannelProxy(mChannelProxyListener, loop,
+                req.writeBufferLowWatermark(), req.writeBufferHighWatermark());
 
         mFrameTx = newFrameTx();
         mFrameRx = newFrameRx(mRxListener);
@@ -131,6 +163,36 @@ public abstract class WebSocket implements Closeable {
         return mHandshake.protocol();
     }
 
+    /**
+     * @return Number of bytes of the encoded frames which are queued but not written to the socket yet.
+     */
+    public long bufferedAmount() {
+        return mSocketChannelProxy.bufferedAmount();
+    }
+
+    /**
+     * @return {@code false} while the buffered amount is over the watermarks.
+     * @see WebSocketHandler#onWritabilityChanged(boolean)
+     */
+    public boolean isWritable() {
+        return mSocketChannelProxy.isWritable();
+    }
+
+    /**
+     * Run the task on the selector thread of this connection after the given delay.<br>
+     * The task must not block, since it delays I/O of all connections on the thread.
+     * It is not cancelled when this connection is closed.
+     *
+     * @param task Task to be run.
+     * @param delay Delay to run the task. Zero or negative value means no delay.
+     * @param unit Unit of {@code delay}.
+     * @return Handle to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        ArgumentCheck.rejectNullArgs(task, unit);
+        return mLoop.schedule(task, delay, unit);
+    }
+
     /**
      * Send text message asynchronously.
      *
@@ -146,9 +208,26 @@ public abstract class WebSocket implements Closeable {
         mFrameTx.sendTextAsync(message);
     }
 
+    /**
+     * Send text message asynchronously, and notify when it is written to the socket.
+     *
+     * @param message Text message to send.
+     * @param callback Completion handler of the message.
+     * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     */
+    public void sendTextMessageAsync(String message, SendCallback callback) {
+        ArgumentCheck.rejectNullArgs(message, callback);
+        if (!isConnected()) {
+            callback.onFailed(new IOException("WebSocket is not connected"));
+            return;
+        }
+
+        mFrameTx.sendTextAsync(message, callback);
+    }
+
     /**
      * Send binary message asynchronously.<br>
-     * Note that byte array argument might be changed to the masked data in case of client side.
+     * The byte array argument is not modified, so it can be reused after this call returns.
      *
      * @param message Binary message to send.
      * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
@@ -162,6 +241,24 @@ public abstract class WebSocket implements Closeable {
         mFrameTx.sendBinaryAsync(message);
     }
 
+    /**
+     * Send binary message asynchronously, and notify when it is written to the socket.<br>
+     * The byte array argument is not modified, so it can be reused after this call returns.
+     *
+     * @param message Binary message to send.
+     * @param callback Completion handler of the message.
+     * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     */
+    public void sendBinaryMessageAsync(byte[] message, SendCallback callback) {
+        ArgumentCheck.rejectNullArgs(message, callback);
+        if (!isConnected()) {
+            callback.onFailed(new IOException("WebSocket is not connected"));
+            return;
+        }
+
+        mFrameTx.sendBinaryAsync(message, callback);
+    }
+
     /**
      * Partial message writer is holding lock for other data frame operations.
      * <p>
@@ -194,6 +291,22 @@ public abstract class WebSocket implements Closeable {
         mFrameTx.sendPingAsync(message);
     }
 
+    /**
+     * Send ping frame asynchronously, and notify when it is written to the socket.
+     *
+     * @param message Ping message to send.
+     * @param callback Completion handler of the frame.
+     */
+    public void sendPingAsync(String message, SendCallback callback) {
+        ArgumentCheck.rejectNullArgs(message, callback);
+        if (!isConnected()) {
+            callback.onFailed(new IOException("WebSocket is not connected"));
+            return;
+        }
+
+        mFrameTx.sendPingAsync(message, callback);
+    }
+
     /**
      * Close WebSocket connection gracefully.<br>
      * If it is already closed, nothing happens.<br>
@@ -220,22 +333,151 @@ public abstract class WebSocket implements Closeable {
         sendCloseFrame(code, reason, true);
     }
 
-    private void sendCloseFrame(CloseStatusCode code, String reason, final boolean waitForResponse) {
+    private volatile Timeout mCloseTimeout;
+
+    private void sendCloseFrame(CloseStatusCode code, String reason, boolean waitForResponse) {
         mFrameTx.sendCloseAsync(code, reason);
 
-        new Thread(new Runnable() {
+        Runnable close = new Runnable() {
             @Override
             public void run() {
-                if (waitForResponse) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e) {
-                        WsLog.e(TAG, "Close frame response waiter interrupted");
-                    }
-                }
                 closeAndRaiseEvent(CloseStatusCode.NORMAL_CLOSURE, "Normal closure");
             }
-        }).start();
+        };
+        if (waitForResponse) {
+            mCloseTimeout = mLoop.schedule(close, CLOSE_HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            mLoop.execute(close);
+        }
+    }
+
+    private final long mIdleTimeoutNanos;
+
+    /**
+     * Time when data is received last time. Accessed only on the selector thread.
+     */
+    private long mLastReceivedAt;
+
+    private volatile Timeout mIdleTimeout;
+
+    private void startIdleTimer() {
+        if (mIdleTimeoutNanos == 0) {
+            return;
+        }
+        mLastReceivedAt = System.nanoTime();
+        mIdleTimeout = mLoop.schedule(mIdleCheck, mIdleTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (!isConnected()) {
+                return;
+            }
+            long idle = System.nanoTime() - mLastReceivedAt;
+            if (idle < mIdleTimeoutNanos) {
+                mIdleTimeout = mLoop.schedule(this, mIdleTimeoutNanos - idle, TimeUnit.NANOSECONDS);
+                return;
+            }
+            WsLog.d(TAG, "Idle timeout");
+            closeAsync(CloseStatusCode.GOING_AWAY, "Idle timeout");
+        }
+    };
+
+    /**
+     * Leading bytes of the heartbeat ping payload, followed by the sending time in nanoseconds.<br>
+     * 0xFF never appears in UTF-8, so it does not collide with ping messages sent by {@link #sendPingAsync(String)}.
+     */
+    private static final byte[] HEARTBEAT_MAGIC = {(byte) 0xFF, 'W', 'S', 'H'};
+    private static final int HEARTBEAT_PAYLOAD_LENGTH = HEARTBEAT_MAGIC.length + 8;
+
+    private final long mHeartbeatIntervalNanos;
+    private final long mPongTimeoutNanos;
+    private final boolean mCloseOnPongMiss;
+
+    private final HeartbeatStats mHeartbeatStats = new HeartbeatStats();
+
+    /**
+     * @return Round trip time statistics of the heartbeat. All the values are zero if heartbeat is not enabled.
+     * @see SessionRequest.Builder#setHeartbeat(int, int, TimeUnit, boolean)
+     */
+    public HeartbeatStats heartbeatStats() {
+        return mHeartbeatStats;
+    }
+
+    /**
+     * Sending time of the heartbeat ping waiting for the pong, or {@code 0}. Accessed only on the selector thread.
+     */
+    private long mPendingPingAt;
+
+    private volatile Timeout mHeartbeatTimeout;
+    private volatile Timeout mPongTimeout;
+
+    private void startHeartbeat() {
+        if (mHeartbeatIntervalNanos == 0) {
+            return;
+        }
+        mHeartbeatTimeout = mLoop.schedule(mHeartbeatTask, mHeartbeatIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mHeartbeatTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!isConnected()) {
+                return;
+            }
+            mHeartbeatTimeout = mLoop.schedule(this, mHeartbeatIntervalNanos, TimeUnit.NANOSECONDS);
+            if (mPendingPingAt != 0) {
+                // Pong timeout of the previous ping is not expired yet.
+                return;
+            }
+
+            long now = System.nanoTime();
+            ByteBuffer payload = ByteBuffer.allocate(HEARTBEAT_PAYLOAD_LENGTH);
+            payload.put(HEARTBEAT_MAGIC).putLong(now);
+            mPendingPingAt = now;
+            mHeartbeatStats.onPingSent();
+            mFrameTx.sendPingAsync(payload.array());
+            mPongTimeout = mLoop.schedule(mPongTimeoutTask, mPongTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+    };
+
+    private final Runnable mPongTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!isConnected() || mPendingPingAt == 0) {
+                return;
+            }
+            mPendingPingAt = 0;
+            mHeartbeatStats.onPongMissed();
+            if (mCloseOnPongMiss) {
+                WsLog.d(TAG, "Heartbeat pong timeout");
+                closeAndRaiseEvent(CloseStatusCode.ABNORMAL_CLOSURE, "Heartbeat pong timeout");
+            }
+        }
+    };
+
+    /**
+     * @param payload Application data of the pong frame.
+     * @return {@code true} if the pong is a response for the heartbeat ping.
+     */
+    private boolean onHeartbeatPong(byte[] payload) {
+        if (payload.length != HEARTBEAT_PAYLOAD_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEARTBEAT_MAGIC.length; i++) {
+            if (payload[i] != HEARTBEAT_MAGIC[i]) {
+                return false;
+            }
+        }
+        long sentAt = ByteBuffer.wrap(payload, HEARTBEAT_MAGIC.length, 8).getLong();
+        if (sentAt == mPendingPingAt) {
+            // Late pongs of the missed pings are silently dropped.
+            mPendingPingAt = 0;
+            cancelTimeout(mPongTimeout);
+            mHeartbeatStats.onPongReceived(System.nanoTime() - sentAt);
+        }
+        return true;
     }
 
     /**
@@ -255,11 +497,21 @@ public abstract class WebSocket implements Closeable {
             return;
         }
 
+        cancelTimeout(mCloseTimeout);
+        cancelTimeout(mIdleTimeout);
+        cancelTimeout(mHeartbeatTimeout);
+        cancelTimeout(mPongTimeout);
         mSocketChannelProxy.close();
         IOUtil.close(mSocketChannel);
         invokeOnClosed(status, message);
     }
 
+    private static void cancelTimeout(Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
     private void invokeOnClosed(int code, String reason) {
         synchronized (mCloseCallbackLock) {
             if (isConnected()) {
@@ -287,6 +539,14 @@ public abstract class WebSocket implements Closeable {
             }
         }
 
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+            if (!isConnected()) {
+                return;
+            }
+            mCallbackHandler.onWritabilityChanged(writable);
+        }
+
         @Override
         public void onDataReceived(final ByteBuffer data) {
             // Log.d(TAG, "SocketChannelProxy onDataReceived");
@@ -301,9 +561,13 @@ public abstract class WebSocket implements Closeable {
                     mFrameRx.setExtensions(extensions);
 
                     onHandshakeCompleted();
+                    startIdleTimer();
+                    startHeartbeat();
 
                     if (data.remaining() != 0) {
+                        // Ownership of the buffer is passed to FrameRx.
                         mFrameRx.onDataReceived(data);
+                        return;
                     }
                 } catch (PayloadUnderflowException e) {
                     // wait for the next data.
@@ -311,7 +575,9 @@ public abstract class WebSocket implements Closeable {
                     WsLog.d(TAG, "HandshakeFailureException: " + e.getMessage());
                     onHandshakeFailed(e);
                 }
+                bufferPool().release(data);
             } else {
+                mLastReceivedAt = System.nanoTime();
                 mFrameRx.onDataReceived(data);
             }
         }
@@ -319,21 +585,24 @@ public abstract class WebSocket implements Closeable {
 
     private FrameRx.Listener mRxListener = new FrameRx.Listener() {
         @Override
-        public void onPingFrame(String message) {
+        public void onPingFrame(byte[] payload) {
             if (!isConnected()) {
                 return;
             }
-            WsLog.d(TAG, "onPingFrame", message);
-            mFrameTx.sendPongAsync(message);
+            WsLog.d(TAG, "onPingFrame");
+            mFrameTx.sendPongAsync(payload);
         }
 
         @Override
-        public void onPongFrame(String message) {
+        public void onPongFrame(byte[] payload) {
             if (!isConnected()) {
                 return;
             }
-            WsLog.d(TAG, "onPongFrame", message);
-            mCallbackHandler.onPong(message);
+            WsLog.d(TAG, "onPongFrame");
+            if (onHeartbeatPong(payload)) {
+                return;
+            }
+            mCallbackHandler.onPong(BinaryUtil.toText(ByteBuffer.wrap(payload), payload.length));
         }
 
         @Override
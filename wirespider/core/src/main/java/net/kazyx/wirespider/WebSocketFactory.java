@@ -9,6 +9,7 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.delegate.SslEngineFactory;
 import net.kazyx.wirespider.exception.HandshakeFailureException;
 import net.kazyx.wirespider.rfc6455.Rfc6455;
 import net.kazyx.wirespider.secure.SecureSessionFactory;
@@ -20,10 +21,11 @@ import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Factory of the WebSocket client connections.
@@ -32,12 +34,33 @@ public class WebSocketFactory {
     private static final String TAG = WebSocketFactory.class.getSimpleName();
 
     private final SelectorProvider mProvider;
-    private final SelectorLoop mSelectorLoop;
+    private final SessionManager mSessionManager;
     private final ExecutorService mExecutor = Executors.newCachedThreadPool();
 
+    /**
+     * Equivalent to {@code new WebSocketFactory(1)}.
+     *
+     * @throws IOException Failed to open selector.
+     */
     public WebSocketFactory() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Each WebSocket connection created by this factory is assigned to the least loaded selector thread,
+     * and all of its I/O events are handled on that thread until the connection is closed.
+     *
+     * @param selectorThreads Number of selector threads to handle I/O events.
+     * @throws IOException Failed to open selector.
+     * @throws IllegalArgumentException If {@code selectorThreads} is zero or negative value.
+     */
+    public WebSocketFactory(int selectorThreads) throws IOException {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("Number of selector threads must be positive");
+        }
         mProvider = SelectorProvider.provider();
-        mSelectorLoop = new SessionManager(mProvider);
+        mSessionManager = new SessionManager(mProvider, selectorThreads);
+        mSessionManager.setDelegatedTaskExecutor(mExecutor);
     }
 
     /**
@@ -45,7 +68,7 @@ public class WebSocketFactory {
      * Note that any connections created by this instance will be released.
      */
     public synchronized void destroy() {
-        mSelectorLoop.destroy();
+        mSessionManager.destroy();
         mExecutor.shutdown();
     }
 
@@ -77,36 +100,113 @@ public class WebSocketFactory {
     }
 
     /**
-     * Open WebSocket connection to the remote server asynchronously.
+     * Open WebSocket connection to the remote server asynchronously.<br>
+     * Only host name resolution and connection initiation are run on the internal thread pool,
+     * and the returned future is completed on the selector thread when the opening handshake is finished.
+     * Thus pending connections do not occupy any threads while waiting for the remote server.
      *
      * @param req Request to be used for opening handshake.
      * @param enableRetrial Enable retrial of opening handshake for recovery against a socket error.
      * @return Future of WebSocket instance.
      * @throws java.util.concurrent.RejectedExecutionException if this factory is already destroyed.
      */
-    public synchronized Future<WebSocket> openAsync(final SessionRequest req, final boolean enableRetrial) {
+    public Future<WebSocket> openAsync(final SessionRequest req, final boolean enableRetrial) {
+        return openAsync(req, enableRetrial, null);
+    }
+
+    /**
+     * Open WebSocket connection to the remote server asynchronously, and notify the result to the callback.<br>
+     * Equivalent to {@code openAsync(req, false, callback);}
+     *
+     * @param req Request to be used for opening handshake.
+     * @param callback Completion handler called on the selector thread. Might be {@code null}.
+     * @return Future of WebSocket instance, to which more completion handlers can be added.
+     * @throws java.util.concurrent.RejectedExecutionException if this factory is already destroyed.
+     */
+    public OpenFuture openAsync(final SessionRequest req, final OpenCallback callback) {
+        return openAsync(req, false, callback);
+    }
+
+    /**
+     * Open WebSocket connection to the remote server asynchronously, and notify the result to the callback.<br>
+     * The callback is registered before the connection is initiated, so that no result is missed.
+     *
+     * @param req Request to be used for opening handshake.
+     * @param enableRetrial Enable retrial of opening handshake for recovery against a socket error.
+     * @param callback Completion handler called on the selector thread. Might be {@code null}.
+     * @return Future of WebSocket instance, to which more completion handlers can be added.
+     * @throws java.util.concurrent.RejectedExecutionException if this factory is already destroyed.
+     * @see #openAsync(SessionRequest, boolean)
+     */
+    public synchronized OpenFuture openAsync(final SessionRequest req, final boolean enableRetrial, final OpenCallback callback) {
         ArgumentCheck.rejectNullArgs(req);
 
-        return mExecutor.submit(new Callable<WebSocket>() {
+        OpenFuture future = new OpenFuture();
+        if (callback != null) {
+            future.addCallback(callback);
+        }
+        startConnect(req, enableRetrial, future);
+        return future;
+    }
+
+    private void startConnect(final SessionRequest req, final boolean enableRetrial, final OpenFuture future) {
+        mExecutor.execute(new Runnable() {
             @Override
-            public WebSocket call() throws Exception {
-                try {
-                    return openSync(req);
-                } catch (IOException e) {
-                    if (!enableRetrial || e instanceof HandshakeFailureException) {
-                        throw e;
+            public void run() {
+                connectAsync(req, enableRetrial, future);
+            }
+        });
+    }
+
+    private void connectAsync(final SessionRequest req, final boolean enableRetrial, final OpenFuture future) {
+        if (future.isDone()) {
+            return;
+        }
+
+        final SocketChannel ch;
+        try {
+            ch = mProvider.openSocketChannel();
+            ch.configureBlocking(false);
+        } catch (IOException e) {
+            future.fail(e);
+            return;
+        }
+
+        final ClientWebSocket ws = mSpec.newClientWebSocket(req, mSessionManager.nextLoop(), ch);
+        ws.connectAsync(req.connectionTimeout(), req.connectionTimeoutUnit(), new ClientWebSocket.ConnectListener() {
+            @Override
+            public void onConnectFinished(IOException failure) {
+                if (failure == null) {
+                    if (!future.complete(ws)) {
+                        // Already cancelled.
+                        IOUtil.close(ws);
                     }
+                    return;
+                }
+
+                IOUtil.close(ws);
+                IOUtil.close(ch);
+                if (enableRetrial && !(failure instanceof HandshakeFailureException) && !future.isDone()) {
                     WsLog.d(TAG, "Retry connection");
+                    try {
+                        startConnect(req, false, future);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        WsLog.d(TAG, "Factory is destroyed before retrial");
+                    }
                 }
-                return openSync(req);
+                future.fail(failure);
             }
         });
+        if (!future.setAttempt(ws)) {
+            ws.abortConnect(new IOException("Opening is cancelled"));
+        }
     }
 
     private WebSocket openSync(SessionRequest req) throws IOException {
         SocketChannel ch = mProvider.openSocketChannel();
         ch.configureBlocking(false);
-        ClientWebSocket ws = mSpec.newClientWebSocket(req, mSelectorLoop, ch);
+        ClientWebSocket ws = mSpec.newClientWebSocket(req, mSessionManager.nextLoop(), ch);
         try {
             ws.connect(req.connectionTimeout(), req.connectionTimeoutUnit());
             return ws;
@@ -127,6 +227,110 @@ public class WebSocketFactory {
         mSpec = spec;
     }
 
+    /**
+     * Set maximum number of bytes to be written into a socket at once.<br>
+     * Queued messages are written until the socket send buffer gets full or this budget is exhausted,
+     * so that a connection sending bulk data does not starve other connections on the same selector thread.<br>
+     * This is applied to the connections opened after this call. 256 KiB by default.
+     *
+     * @param bytes Maximum number of bytes.
+     * @throws IllegalArgumentException If {@code bytes} is zero or negative value.
+     */
+    public void setMaxBytesPerFlush(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("Flush budget must be positive");
+        }
+        mSessionManager.setMaxBytesPerFlush(bytes);
+    }
+
+    /**
+     * Set factory of {@link BufferPool}s. Each selector thread owns its own pool created by the factory.<br>
+     * Pools of {@link SizeClassBufferPool} with default parameters are used by default.
+     *
+     * @param factory Factory of the buffer pools.
+     */
+    public void setBufferPoolFactory(BufferPool.Factory factory) {
+        ArgumentCheck.rejectNull(factory);
+        mSessionManager.setBufferPoolFactory(factory);
+    }
+
+    /**
+     * Set executor to run delegated tasks of TLS handshake, e.g. certificate validation and key exchange,
+     * so that they do not stall other connections on the selector thread.<br>
+     * The handshake is resumed on the selector thread when the tasks are finished.<br>
+     * This is applied to the connections opened after this call. Internal thread pool of this factory is used by default.
+     *
+     * @param executor Executor of the delegated tasks. {@code null} to run them on the selector thread.
+     */
+    public void setDelegatedTaskExecutor(Executor executor) {
+        mSessionManager.setDelegatedTaskExecutor(executor);
+    }
+
+    /**
+     * Configure client session cache of the {@link SSLContext} used for secure WebSocket connections.<br>
+     * Engines are created with the host and port of the remote server,
+     * so that reconnection to the same server can resume a cached session instead of a full handshake.<br>
+     * This is applied to the connections opened after this call. Default values of the {@link SSLContext} are used by default.<br>
+     * The cache belongs to the {@link SSLContext}, thus the settings are shared with other factories and other users of the same context,
+     * e.g. {@link SSLContext#getDefault()}. They are applied once to the context when the next connection is opened with it.<br>
+     * Engines created by {@link SslEngineFactory} are not affected. Configure their {@link SSLContext} instead.
+     *
+     * @param size Maximum number of cached sessions. {@code 0} means no limit.
+     * @param timeoutSeconds Lifetime of cached sessions in seconds. {@code 0} means no limit.
+     * @throws IllegalArgumentException If {@code size} or {@code timeoutSeconds} is negative value.
+     */
+    public void setTlsSessionCache(int size, int timeoutSeconds) {
+        if (size < 0 || timeoutSeconds < 0) {
+            throw new IllegalArgumentException("Session cache size and timeout must not be negative");
+        }
+        mSessionManager.setTlsSessionCache(size, timeoutSeconds);
+    }
+
+    /**
+     * Set whether messages of secure WebSocket connections are gathered into TLS records.<br>
+     * If enabled, messages queued until the selector thread flushes the connection are wrapped together
+     * into records of up to 16 KiB, which saves per-record overhead of chatty connections.
+     * Otherwise each message is wrapped into its own records.<br>
+     * This is applied to the connections opened after this call. Enabled by default.
+     *
+     * @param coalesce {@code true} to gather messages into TLS records.
+     */
+    public void setTlsRecordCoalescing(boolean coalesce) {
+        mSessionManager.setTlsRecordCoalescing(coalesce);
+    }
+
+    /**
+     * Handshakes of engines created by {@link SslEngineFactory} are not counted.
+     *
+     * @return Number of TLS handshakes of this factory which resumed a cached session.
+     */
+    public long tlsResumedHandshakeCount() {
+        return mSessionManager.tlsResumedHandshakeCount();
+    }
+
+    /**
+     * Handshakes of engines created by {@link SslEngineFactory} are not counted.
+     *
+     * @return Number of TLS handshakes of this factory which established a new session.
+     */
+    public long tlsFullHandshakeCount() {
+        return mSessionManager.tlsFullHandshakeCount();
+    }
+
+    /**
+     * Set factory of {@link javax.net.ssl.SSLEngine} for secure WebSocket connections opened by this factory.<br>
+     * Unlike {@link #setSslContext(SSLContext)}, this is not shared with other factories,
+     * so that differently configured factories can be used in the same process.
+     * {@link SessionRequest.Builder#setSslEngineFactory(SslEngineFactory)} takes precedence over this.<br>
+     * This is applied to the connections opened after this call.
+     * If nothing is set, engines are created from the {@link SSLContext} set to {@link #setSslContext(SSLContext)}.
+     *
+     * @param factory Factory of SSLEngine. {@code null} to use the default one.
+     */
+    public void setSslEngineFactory(SslEngineFactory factory) {
+        mSessionManager.setSslEngineFactory(factory);
+    }
+
     /**
      * Set custom {@link SSLContext} for secure WebSocket connection.<br>
      * If nothing is set, default {@link SSLContext} is used.
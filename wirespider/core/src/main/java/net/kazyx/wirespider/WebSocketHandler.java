@@ -37,6 +37,19 @@ public abstract class WebSocketHandler {
         // Nothing to do by default.
     }
 
+    /**
+     * Writability of the connection is changed.<br>
+     * Called when the amount of the buffered outgoing data exceeds the high watermark, and when it falls to the low watermark again.
+     * Producers are expected to pause sending while the connection is not writable.
+     *
+     * @param writable {@code true} if the connection gets writable, {@code false} if it gets unwritable.
+     * @see SessionRequest.Builder#setWriteBufferWatermarks(int, int)
+     * @see WebSocket#bufferedAmount()
+     */
+    public void onWritabilityChanged(boolean writable) {
+        // Nothing to do by default.
+    }
+
     /**
      * WebSocket closed.
      *
@@ -0,0 +1,29 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2015 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+
+package net.kazyx.wirespider.delegate;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+
+public interface SslEngineFactory {
+    /**
+     * Create {@link SSLEngine} for a secure WebSocket connection.<br>
+     * Enabled protocols, cipher suites, server name indication and so on can be configured here,
+     * and the engine can be created from {@link javax.net.ssl.SSLContext} of any provider.
+     * Client mode is set by the caller.
+     *
+     * @param host Host name of the remote server.
+     * @param port Port number of the remote server.
+     * @return Newly created engine.
+     * @throws IOException if failed to create the engine.
+     */
+    SSLEngine createSslEngine(String host, int port) throws IOException;
+}
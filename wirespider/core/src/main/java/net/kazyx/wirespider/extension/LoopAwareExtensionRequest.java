@@ -0,0 +1,27 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension;
+
+import net.kazyx.wirespider.SelectorLoop;
+
+/**
+ * {@link ExtensionRequest} whose extension shares resources among the connections on the same selector loop.
+ *
+ * @see SelectorLoop#resource(SelectorLoop.ResourceFactory)
+ */
+public interface LoopAwareExtensionRequest extends ExtensionRequest {
+    /**
+     * This is used instead of {@link #extension()} when the connection is assigned to a selector loop.
+     *
+     * @param loop Selector loop to which the connection is assigned.
+     * @return Extension instance result for this request.
+     */
+    Extension extension(SelectorLoop loop);
+}
@@ -17,8 +17,8 @@ public interface PayloadFilter {
      * Called before the frame is created.
      *
      * @param data Original data. This might be modified after this method.
-     * @return Filtered data.
-     * @throws IOException Any filtering error detected or filtering is skipped.
+     * @return Filtered data, or {@code null} to skip filtering. The original data is sent without the reserved bits of the extension.
+     * @throws IOException Any filtering error detected. The original data is sent without the reserved bits of the extension.
      */
     ByteBuffer onSendingText(ByteBuffer data) throws IOException;
 
@@ -26,8 +26,8 @@ public interface PayloadFilter {
      * Called before the frame is created.
      *
      * @param data Original data. This might be modified after this method.
-     * @return Filtered data.
-     * @throws IOException Any filtering error detected or filtering is skipped.
+     * @return Filtered data, or {@code null} to skip filtering. The original data is sent without the reserved bits of the extension.
+     * @throws IOException Any filtering error detected. The original data is sent without the reserved bits of the extension.
      */
     ByteBuffer onSendingBinary(ByteBuffer data) throws IOException;
 
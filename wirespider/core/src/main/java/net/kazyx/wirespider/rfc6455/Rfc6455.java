@@ -25,17 +25,17 @@ public class Rfc6455 implements WebSocketSpec {
         return new ClientWebSocket(req, loop, ch) {
             @Override
             protected FrameTx newFrameTx() {
-                return new Rfc6455Tx(socketChannelProxy(), true);
+                return new Rfc6455Tx(socketChannelProxy(), true, bufferPool());
             }
 
             @Override
             protected FrameRx newFrameRx(FrameRx.Listener listener) {
-                return new Rfc6455Rx(listener, maxResponsePayloadSizeInBytes(), true);
+                return new Rfc6455Rx(listener, maxResponsePayloadSizeInBytes(), true, bufferPool());
             }
 
             @Override
             protected Handshake newHandshake() {
-                return new Rfc6455Handshake(socketChannelProxy(), true);
+                return new Rfc6455Handshake(socketChannelProxy(), true, selectorLoop());
             }
         };
     }
@@ -11,6 +11,7 @@ package net.kazyx.wirespider.rfc6455;
 
 import net.kazyx.wirespider.Handshake;
 import net.kazyx.wirespider.HandshakeResponse;
+import net.kazyx.wirespider.SelectorLoop;
 import net.kazyx.wirespider.SessionRequest;
 import net.kazyx.wirespider.SocketChannelWriter;
 import net.kazyx.wirespider.delegate.HandshakeResponseHandler;
@@ -18,6 +19,7 @@ import net.kazyx.wirespider.exception.HandshakeFailureException;
 import net.kazyx.wirespider.exception.PayloadUnderflowException;
 import net.kazyx.wirespider.extension.Extension;
 import net.kazyx.wirespider.extension.ExtensionRequest;
+import net.kazyx.wirespider.extension.LoopAwareExtensionRequest;
 import net.kazyx.wirespider.http.HttpHeader;
 import net.kazyx.wirespider.http.HttpHeaderReader;
 import net.kazyx.wirespider.http.HttpStatusLine;
@@ -49,6 +51,8 @@ class Rfc6455Handshake implements Handshake {
 
     private final boolean mIsClient;
 
+    private final SelectorLoop mLoop;
+
     private HandshakeResponseHandler mResponseHandler;
 
     private static class DefaultHandshakeResponseHandler implements HandshakeResponseHandler {
@@ -83,8 +87,18 @@ class Rfc6455Handshake implements Handshake {
     }
 
     Rfc6455Handshake(SocketChannelWriter writer, boolean isClient) {
+        this(writer, isClient, null);
+    }
+
+    /**
+     * @param writer Writer of the handshake request.
+     * @param isClient {@code true} if this is a client side handshake.
+     * @param loop Selector loop of the connection, or {@code null} if extensions do not need it.
+     */
+    Rfc6455Handshake(SocketChannelWriter writer, boolean isClient, SelectorLoop loop) {
         mIsClient = isClient;
         mWriter = writer;
+        mLoop = loop;
     }
 
     @Override
@@ -115,7 +129,11 @@ class Rfc6455Handshake implements Handshake {
         if (extensions != null) {
             for (ExtensionRequest exReq : extensions) {
                 sb.append(exReq.requestHeader().toHeaderLine()).append("\r\n");
-                mRequestedExtensions.add(exReq.extension());
+                if (mLoop != null && exReq instanceof LoopAwareExtensionRequest) {
+                    mRequestedExtensions.add(((LoopAwareExtensionRequest) exReq).extension(mLoop));
+                } else {
+                    mRequestedExtensions.add(exReq.extension());
+                }
             }
         }
 
@@ -9,12 +9,13 @@
 
 package net.kazyx.wirespider.rfc6455;
 
+import net.kazyx.wirespider.BufferPool;
 import net.kazyx.wirespider.CloseStatusCode;
 import net.kazyx.wirespider.FrameRx;
 import net.kazyx.wirespider.FrameType;
 import net.kazyx.wirespider.OpCode;
+import net.kazyx.wirespider.SizeClassBufferPool;
 import net.kazyx.wirespider.exception.PayloadOverflowException;
-import net.kazyx.wirespider.exception.PayloadUnderflowException;
 import net.kazyx.wirespider.exception.ProtocolViolationException;
 import net.kazyx.wirespider.extension.Extension;
 import net.kazyx.wirespider.util.BinaryUtil;
@@ -23,9 +24,7 @@ import net.kazyx.wirespider.util.WsLog;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.List;
 
 class Rfc6455Rx implements FrameRx {
@@ -35,11 +34,24 @@ class Rfc6455Rx implements FrameRx {
     private final int mMaxPayloadSize;
     private List<Extension> mExtensions = Collections.emptyList();
     private final boolean mIsClient;
+    private final BufferPool mPool;
 
     Rfc6455Rx(FrameRx.Listener listener, int maxPayload, boolean isClient) {
+        this(listener, maxPayload, isClient, new SizeClassBufferPool(false,
+                SizeClassBufferPool.DEFAULT_MAX_BUFFER_SIZE, SizeClassBufferPool.DEFAULT_MAX_BUFFERS_PER_CLASS));
+    }
+
+    /**
+     * @param listener Listener of the received frames.
+     * @param maxPayload Maximum size of the payload to accept.
+     * @param isClient {@code true} if this is a client side receiver.
+     * @param pool Pool to which the received buffers are released after they are consumed.
+     */
+    Rfc6455Rx(FrameRx.Listener listener, int maxPayload, boolean isClient, BufferPool pool) {
         mListener = listener;
         mMaxPayloadSize = maxPayload;
         mIsClient = isClient;
+        mPool = pool;
     }
 
     @Override
@@ -47,178 +59,251 @@ class Rfc6455Rx implements FrameRx {
         mExtensions = extensions;
     }
 
-    private boolean isFinal;
-    private byte opcode;
-    private byte first;
+    /**
+     * Flags, payload length and masking key. 14 bytes at most.
+     */
+    private static final int MAX_HEADER_LENGTH = 14;
 
-    private final Runnable mReadOpCodeOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                first = readBytes(1).array()[0];
-                isFinal = BinaryUtil.isFlagMatched(first, (byte) 0x80);
+    /**
+     * Header bytes of a frame which straddles received buffers.
+     */
+    private final ByteBuffer mPartialHeader = ByteBuffer.allocate(MAX_HEADER_LENGTH);
 
-                int maskedRsvBits = first & 0x70;
-                for (Extension ext : mExtensions) {
-                    maskedRsvBits = maskedRsvBits & ~ext.reservedBits();
-                }
-                if (maskedRsvBits != 0) {
-                    throw new ProtocolViolationException("Reserved bits invalid");
-                }
+    /**
+     * Payload of a frame which straddles received buffers. {@code null} while reading a header.
+     */
+    private ByteBuffer mPartialPayload;
 
-                opcode = (byte) (first & 0x0f);
-                mSecondByteOperation.run();
-            } catch (PayloadUnderflowException e) {
-                // No need to flush this log. Always happens at frame end.
-                // Log.d(TAG, "BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
-                }
-            } catch (ProtocolViolationException e) {
-                WsLog.d(TAG, "Protocol violation", e.getMessage());
-                mListener.onProtocolViolation();
-            }
-        }
-    };
+    /**
+     * Set after a fatal error is reported. Following data are discarded.
+     */
+    private boolean mIsFailed = false;
 
+    private boolean isFinal;
+    private byte opcode;
+    private byte first;
     private boolean isMasked;
     private int payloadLength;
+    private final byte[] mask = new byte[4];
 
-    private final Runnable mSecondByteOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                byte second = readBytes(1).array()[0];
-                isMasked = BinaryUtil.isFlagMatched(second, (byte) 0x80);
+    @Override
+    public void onDataReceived(ByteBuffer data) {
+        try {
+            if (!mIsFailed) {
+                decode(data);
+            }
+        } finally {
+            mPool.release(data);
+        }
+    }
 
-                if (mIsClient == isMasked) {
-                    throw new ProtocolViolationException("Masked payload from server or unmasked payload from client");
+    private void decode(ByteBuffer data) {
+        try {
+            while (true) {
+                if (mPartialPayload != null) {
+                    if (!fillPartialPayload(data)) {
+                        return;
+                    }
+                    ByteBuffer payload = mPartialPayload;
+                    mPartialPayload = null;
+                    payload.flip();
+                    onPayload(payload);
+                    continue;
                 }
 
-                payloadLength = second & 0x7f;
-                if (payloadLength > mMaxPayloadSize) {
-                    throw new PayloadOverflowException("Payload size exceeds " + mMaxPayloadSize);
+                ByteBuffer header = readHeader(data);
+                if (header == null) {
+                    return;
                 }
-                switch (payloadLength) {
-                    case 126:
-                    case 127:
-                        mExtendedPayloadOperation.run();
-                        break;
-                    default:
-                        if (isMasked) {
-                            mMaskKeyOperation.run();
-                        } else {
-                            mPayloadOperation.run();
-                        }
-                        break;
+                parseHeader(header);
+                if (header == mPartialHeader) {
+                    mPartialHeader.clear();
                 }
-            } catch (PayloadUnderflowException e) {
-                WsLog.v(TAG, "SecondByte BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
+
+                if (payloadLength <= data.remaining()) {
+                    // Whole payload is in this buffer. Decode it in place.
+                    onPayload(data);
+                } else {
+                    mPartialPayload = ByteBuffer.allocate(payloadLength);
                 }
-            } catch (PayloadOverflowException e) {
-                WsLog.d(TAG, "Payload size overflow", e.getMessage());
-                mListener.onPayloadOverflow();
-            } catch (ProtocolViolationException e) {
-                WsLog.d(TAG, "Protocol violation", e.getMessage());
-                mListener.onProtocolViolation();
             }
+        } catch (PayloadOverflowException e) {
+            WsLog.d(TAG, "Payload size overflow", e.getMessage());
+            mIsFailed = true;
+            mListener.onPayloadOverflow();
+        } catch (ProtocolViolationException e) {
+            WsLog.d(TAG, "Protocol violation", e.getMessage());
+            mIsFailed = true;
+            mListener.onProtocolViolation();
+        } catch (IOException e) {
+            WsLog.printStackTrace(TAG, e);
+            mIsFailed = true;
+            mListener.onInvalidPayloadError(e);
         }
-    };
-
-    private final Runnable mExtendedPayloadOperation = new Runnable() {
-        @Override
-        public void run() {
-            int size = payloadLength == 126 ? 2 : 8;
-            try {
-                // TODO support large payload over 2GB
-                payloadLength = BinaryUtil.toUnsignedInteger(readBytes(size));
-                if (payloadLength > mMaxPayloadSize) {
-                    throw new PayloadOverflowException("Payload size exceeds " + mMaxPayloadSize);
-                }
-                if (isMasked) {
-                    mMaskKeyOperation.run();
-                } else {
-                    mPayloadOperation.run();
-                }
-            } catch (PayloadUnderflowException e) {
-                WsLog.v(TAG, "ExtendedPayloadLength BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
-                }
-            } catch (PayloadOverflowException | IllegalArgumentException e) {
-                WsLog.d(TAG, "Payload size overflow", e.getMessage());
-                mListener.onPayloadOverflow();
+    }
+
+    /**
+     * @param data Received data.
+     * @return Buffer positioned at the head of a complete frame header, or {@code null} if the header is not
+     * received yet. In the latter case, received part of the header is kept in {@link #mPartialHeader}.
+     * @throws ProtocolViolationException Received part of the header violates the protocol.
+     */
+    private ByteBuffer readHeader(ByteBuffer data) throws ProtocolViolationException {
+        if (mPartialHeader.position() == 0) {
+            if (!data.hasRemaining()) {
+                return null;
+            }
+            validateLeadingBytes(data, data.position(), data.remaining());
+            int length = headerLength(data, data.position(), data.remaining());
+            if (length != -1 && length <= data.remaining()) {
+                return data;
             }
+            // Shorter than MAX_HEADER_LENGTH.
+            mPartialHeader.put(data);
+            return null;
         }
-    };
-
-    private byte[] mask;
-
-    private final Runnable mMaskKeyOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                mask = readBytes(4).array();
-                mPayloadOperation.run();
-            } catch (PayloadUnderflowException e) {
-                WsLog.v(TAG, "MaskKey BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
-                }
+
+        while (true) {
+            validateLeadingBytes(mPartialHeader, 0, mPartialHeader.position());
+            int length = headerLength(mPartialHeader, 0, mPartialHeader.position());
+            int required = (length == -1 ? 2 : length) - mPartialHeader.position();
+            if (required == 0) {
+                mPartialHeader.flip();
+                return mPartialHeader;
+            }
+            if (!data.hasRemaining()) {
+                return null;
+            }
+            int copied = Math.min(required, data.remaining());
+            for (int i = 0; i < copied; i++) {
+                mPartialHeader.put(data.get());
             }
         }
-    };
-
-    private final Runnable mPayloadOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                ByteBuffer payload = readBytes(payloadLength);
-                if (isMasked) {
-                    BinaryUtil.maskAll(payload, mask);
-                }
+    }
 
-                handleFrame(opcode, payload, isFinal);
-                mReadOpCodeOperation.run();
-            } catch (PayloadUnderflowException e) {
-                if (mSuspendedOperation != this) {
-                    // Flush log only for the first time
-                    WsLog.v(TAG, "Payload BufferUnsatisfied");
-                }
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
-                }
-            } catch (ProtocolViolationException | IllegalArgumentException e) {
-                WsLog.d(TAG, "Protocol violation", e.getMessage());
-                mListener.onProtocolViolation();
-            } catch (IOException e) {
-                WsLog.printStackTrace(TAG, e);
-                mListener.onInvalidPayloadError(e);
+    /**
+     * Check flags in the first 2 bytes of the header as soon as they are received.
+     */
+    private void validateLeadingBytes(ByteBuffer buffer, int offset, int available) throws ProtocolViolationException {
+        int maskedRsvBits = buffer.get(offset) & 0x70;
+        for (Extension ext : mExtensions) {
+            maskedRsvBits = maskedRsvBits & ~ext.reservedBits();
+        }
+        if (maskedRsvBits != 0) {
+            throw new ProtocolViolationException("Reserved bits invalid");
+        }
+
+        if (available >= 2 && mIsClient == BinaryUtil.isFlagMatched(buffer.get(offset + 1), (byte) 0x80)) {
+            throw new ProtocolViolationException("Masked payload from server or unmasked payload from client");
+        }
+    }
+
+    /**
+     * @return Length of the frame header, or {@code -1} if it is not determined yet.
+     */
+    private static int headerLength(ByteBuffer buffer, int offset, int available) {
+        if (available < 2) {
+            return -1;
+        }
+        byte second = buffer.get(offset + 1);
+        int length = 2;
+        switch (second & 0x7f) {
+            case 126:
+                length += 2;
+                break;
+            case 127:
+                length += 8;
+                break;
+            default:
+                break;
+        }
+        if (BinaryUtil.isFlagMatched(second, (byte) 0x80)) {
+            length += 4;
+        }
+        return length;
+    }
+
+    /**
+     * Parse the complete header validated by {@link #validateLeadingBytes(ByteBuffer, int, int)}.
+     */
+    private void parseHeader(ByteBuffer header) throws PayloadOverflowException {
+        first = header.get();
+        isFinal = BinaryUtil.isFlagMatched(first, (byte) 0x80);
+        opcode = (byte) (first & 0x0f);
+
+        byte second = header.get();
+        isMasked = BinaryUtil.isFlagMatched(second, (byte) 0x80);
+
+        long length = second & 0x7f;
+        int extended = length == 126 ? 2 : length == 127 ? 8 : 0;
+        if (extended != 0) {
+            length = 0;
+            for (int i = 0; i < extended; i++) {
+                length = (length << 8) | (header.get() & 0xff);
             }
         }
-    };
+        // TODO support large payload over 2GB
+        if (length < 0 || length > mMaxPayloadSize) {
+            throw new PayloadOverflowException("Payload size exceeds " + mMaxPayloadSize);
+        }
+        payloadLength = (int) length;
+
+        if (isMasked) {
+            header.get(mask);
+        }
+    }
+
+    /**
+     * @return {@code true} if the whole payload is copied.
+     */
+    private boolean fillPartialPayload(ByteBuffer data) {
+        int copied = Math.min(mPartialPayload.remaining(), data.remaining());
+        int limit = data.limit();
+        data.limit(data.position() + copied);
+        mPartialPayload.put(data);
+        data.limit(limit);
+        return !mPartialPayload.hasRemaining();
+    }
+
+    /**
+     * Handle payload of the current frame. Position of the buffer is advanced by the payload length.
+     *
+     * @param buffer Buffer positioned at the head of the payload.
+     */
+    private void onPayload(ByteBuffer buffer) throws ProtocolViolationException, IOException {
+        int end = buffer.position() + payloadLength;
+        if (isMasked) {
+            // Received buffers are owned by this receiver. Unmask in place.
+            int limit = buffer.limit();
+            buffer.limit(end);
+            BinaryUtil.maskAll(buffer, mask);
+            buffer.limit(limit);
+        }
+        try {
+            handleFrame(opcode, buffer, payloadLength, isFinal);
+        } finally {
+            buffer.position(end);
+        }
+    }
 
     private FrameType mContinuationType = null;
     private final ByteArrayOutputStream mContinuationBuffer = new ByteArrayOutputStream();
 
-    private void handleFrame(byte opcode, ByteBuffer payload, boolean isFinal) throws ProtocolViolationException, IOException {
+    private void handleFrame(byte opcode, ByteBuffer payload, int length, boolean isFinal) throws ProtocolViolationException, IOException {
         // WsLog.v(TAG, "handleFrame", opcode);
         switch (opcode) {
             case OpCode.CONTINUATION: {
                 if (mContinuationType == null) {
                     throw new ProtocolViolationException("Sudden continuation opcode");
                 }
-                int length = payload.remaining();
-                mContinuationBuffer.write(BinaryUtil.toBytesRemaining(payload), 0, length);
+                appendContinuation(payload, length);
                 if (isFinal) {
                     ByteBuffer binary = ByteBuffer.wrap(mContinuationBuffer.toByteArray());
                     mContinuationBuffer.reset();
                     if (mContinuationType == FrameType.BINARY) {
                         handleBinaryFrame(binary);
                     } else {
-                        handleTextFrame(binary);
+                        handleTextFrame(binary, binary.remaining());
                     }
                     mContinuationType = null;
                 }
@@ -226,20 +311,18 @@ class Rfc6455Rx implements FrameRx {
             }
             case OpCode.TEXT: {
                 if (isFinal) {
-                    handleTextFrame(payload);
+                    handleTextFrame(payload, length);
                 } else {
-                    int length = payload.remaining();
-                    mContinuationBuffer.write(BinaryUtil.toBytesRemaining(payload), 0, length);
+                    appendContinuation(payload, length);
                     mContinuationType = FrameType.TEXT;
                 }
                 break;
             }
             case OpCode.BINARY: {
                 if (isFinal) {
-                    handleBinaryFrame(payload);
+                    handleBinaryFrame(ByteBuffer.wrap(toBytes(payload, length)));
                 } else {
-                    int length = payload.remaining();
-                    mContinuationBuffer.write(BinaryUtil.toBytesRemaining(payload), 0, length);
+                    appendContinuation(payload, length);
                     mContinuationType = FrameType.BINARY;
                 }
                 break;
@@ -248,23 +331,27 @@ class Rfc6455Rx implements FrameRx {
                 if (!isFinal) {
                     throw new ProtocolViolationException("Non-final flag for ping opcode");
                 }
-                if (payload.remaining() > 125) {
+                if (length > 125) {
                     throw new ProtocolViolationException("Ping payload too large");
                 }
-                mListener.onPingFrame(BinaryUtil.toTextAll(payload));
+                mListener.onPingFrame(toBytes(payload, length));
                 break;
             case OpCode.PONG:
                 if (!isFinal) {
                     throw new ProtocolViolationException("Non-final flag for pong opcode");
                 }
-                mListener.onPongFrame(BinaryUtil.toTextAll(payload));
+                mListener.onPongFrame(toBytes(payload, length));
                 break;
             case OpCode.CONNECTION_CLOSE:
                 if (!isFinal) {
                     throw new ProtocolViolationException("Non-final flag for close opcode");
                 }
-                int code = (payload.remaining() >= 2) ? (payload.get() << 8) + (payload.get() & 0xFF) : CloseStatusCode.NO_STATUS_RECEIVED.asNumber();
-                String reason = (payload.remaining() > 2) ? BinaryUtil.toTextRemaining(payload) : "";
+                int code = CloseStatusCode.NO_STATUS_RECEIVED.asNumber();
+                String reason = "";
+                if (length >= 2) {
+                    code = ((payload.get() & 0xFF) << 8) + (payload.get() & 0xFF);
+                    reason = BinaryUtil.toText(payload, length - 2);
+                }
                 mListener.onCloseFrame(code, reason);
                 break;
             default:
@@ -272,6 +359,15 @@ class Rfc6455Rx implements FrameRx {
         }
     }
 
+    private boolean isFiltered() {
+        for (Extension ext : mExtensions) {
+            if (BinaryUtil.isFlagMatched(first, ext.reservedBits())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void handleBinaryFrame(ByteBuffer buffer) throws IOException {
         for (Extension ext : mExtensions) {
             if (BinaryUtil.isFlagMatched(first, ext.reservedBits())) {
@@ -281,7 +377,16 @@ class Rfc6455Rx implements FrameRx {
         mListener.onBinaryMessage(buffer);
     }
 
-    private void handleTextFrame(ByteBuffer buffer) throws IOException {
+    private void handleTextFrame(ByteBuffer buffer, int length) throws IOException {
+        if (!isFiltered()) {
+            mListener.onTextMessage(BinaryUtil.toText(buffer, length));
+            return;
+        }
+
+        // Filters require a buffer which exactly wraps the payload.
+        if (!buffer.hasArray() || buffer.arrayOffset() != 0 || buffer.position() != 0 || buffer.capacity() != length) {
+            buffer = ByteBuffer.wrap(toBytes(buffer, length));
+        }
         for (Extension ext : mExtensions) {
             if (BinaryUtil.isFlagMatched(first, ext.reservedBits())) {
                 buffer = ext.filter().onReceivingText(buffer);
@@ -291,59 +396,17 @@ class Rfc6455Rx implements FrameRx {
         mListener.onTextMessage(text);
     }
 
-    @Override
-    public void onDataReceived(ByteBuffer data) {
-        // Log.d(TAG, "onDataReceived");
-        mReceivedBuffer.addLast(data);
-        mBufferSize += data.remaining();
-
-        synchronized (mOperationSequenceLock) {
-            if (mWaitingSize <= mBufferSize) {
-                mSuspendedOperation.run();
-            }
+    private void appendContinuation(ByteBuffer payload, int length) {
+        if (payload.hasArray()) {
+            mContinuationBuffer.write(payload.array(), payload.arrayOffset() + payload.position(), length);
+        } else {
+            mContinuationBuffer.write(toBytes(payload, length), 0, length);
         }
     }
 
-    private final Object mOperationSequenceLock = new Object();
-
-    private Runnable mSuspendedOperation = mReadOpCodeOperation;
-
-    private int mWaitingSize = 0;
-
-    private int mBufferSize = 0;
-
-    private final Deque<ByteBuffer> mReceivedBuffer = new ArrayDeque<>();
-
-    private ByteBuffer readBytes(int length) throws PayloadUnderflowException {
-        if (mBufferSize < length) {
-            mWaitingSize = length;
-            throw new PayloadUnderflowException();
-        }
-
-        ByteBuffer ret = ByteBuffer.allocate(length);
-
-        while (!mReceivedBuffer.isEmpty()) {
-            ByteBuffer buff = mReceivedBuffer.getFirst();
-            int copied = Math.min(ret.remaining(), buff.remaining());
-            if (ret.remaining() < buff.remaining()) {
-                byte[] tmp = new byte[copied];
-                buff.get(tmp);
-                ret.put(tmp);
-            } else {
-                ret.put(buff);
-            }
-
-            if (buff.remaining() == 0) {
-                mReceivedBuffer.remove();
-            }
-
-            if (ret.remaining() == 0) {
-                break;
-            }
-        }
-
-        mBufferSize -= length;
-        ret.flip();
-        return ret;
+    private static byte[] toBytes(ByteBuffer payload, int length) {
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return bytes;
     }
 }
@@ -9,9 +9,12 @@
 
 package net.kazyx.wirespider.rfc6455;
 
+import net.kazyx.wirespider.BufferPool;
 import net.kazyx.wirespider.CloseStatusCode;
 import net.kazyx.wirespider.FrameTx;
 import net.kazyx.wirespider.OpCode;
+import net.kazyx.wirespider.SendCallback;
+import net.kazyx.wirespider.SizeClassBufferPool;
 import net.kazyx.wirespider.SocketChannelWriter;
 import net.kazyx.wirespider.extension.Extension;
 import net.kazyx.wirespider.util.BinaryUtil;
@@ -32,15 +35,33 @@ class Rfc6455Tx implements FrameTx {
     private List<Extension> mExtensions = Collections.emptyList();
     private final boolean mIsClient;
     private final SocketChannelWriter mWriter;
+    private final BufferPool mPool;
 
     private final Object mCloseFlagLock = new Object();
     private boolean mIsCloseSent = false;
 
     private ReentrantLock mDataLock = new ReentrantLock();
 
+    /**
+     * Filters might keep state across messages, e.g. compression context takeover,
+     * so data frames must be queued in the same order as they are filtered.
+     */
+    private final Object mFilterLock = new Object();
+
     Rfc6455Tx(SocketChannelWriter writer, boolean isClient) {
+        this(writer, isClient, new SizeClassBufferPool(false,
+                SizeClassBufferPool.DEFAULT_MAX_BUFFER_SIZE, SizeClassBufferPool.DEFAULT_MAX_BUFFERS_PER_CLASS));
+    }
+
+    /**
+     * @param writer Writer of the encoded frames.
+     * @param isClient {@code true} if this is a client side transmitter.
+     * @param pool Pool from which the frame buffers are acquired.
+     */
+    Rfc6455Tx(SocketChannelWriter writer, boolean isClient, BufferPool pool) {
         mIsClient = isClient;
         mWriter = writer;
+        mPool = pool;
     }
 
     /**
@@ -48,32 +69,50 @@ class Rfc6455Tx implements FrameTx {
      */
     @Override
     public void sendTextAsync(String data) {
+        sendTextAsync(data, null);
+    }
+
+    /**
+     * @throws IllegalStateException {@inheritDoc}
+     */
+    @Override
+    public void sendTextAsync(String data, SendCallback callback) {
         // WsLog.v(TAG, "sendTextAsync");
         if (mDataLock.isLocked()) {
             throw new IllegalStateException("PartialMessageWriter is holding a lock");
         }
-        sendTextFrame(data, OpCode.TEXT, true);
+        sendTextFrame(data, OpCode.TEXT, true, callback);
     }
 
     @Override
     public void sendTextAsyncPrivileged(String data, boolean continuation, boolean isFinal) {
-        sendTextFrame(data, continuation ? OpCode.CONTINUATION : OpCode.TEXT, isFinal);
+        sendTextFrame(data, continuation ? OpCode.CONTINUATION : OpCode.TEXT, isFinal, null);
     }
 
-    private void sendTextFrame(String data, byte opcode, boolean isFinal) {
+    private void sendTextFrame(String data, byte opcode, boolean isFinal, SendCallback callback) {
         ByteBuffer buff = ByteBuffer.wrap(BinaryUtil.fromText(data));
-        byte extensionBits = 0;
-        for (Extension ext : mExtensions) {
-            try {
-                buff = ext.filter().onSendingText(buff);
-                extensionBits = (byte) (extensionBits | ext.reservedBits());
-            } catch (IOException e) {
-                // Filtering error. Send original data.
-                WsLog.v(TAG, e.getMessage());
-            }
+        if (mExtensions.isEmpty()) {
+            sendFrameAsync(opcode, buff, (byte) 0, isFinal, callback);
+            return;
         }
 
-        sendFrameAsync(opcode, buff, extensionBits, isFinal);
+        synchronized (mFilterLock) {
+            byte extensionBits = 0;
+            for (Extension ext : mExtensions) {
+                try {
+                    ByteBuffer filtered = ext.filter().onSendingText(buff);
+                    if (filtered != null) {
+                        buff = filtered;
+                        extensionBits = (byte) (extensionBits | ext.reservedBits());
+                    }
+                } catch (IOException e) {
+                    // Filtering error. Send original data.
+                    WsLog.v(TAG, e.getMessage());
+                }
+            }
+
+            sendFrameAsync(opcode, buff, extensionBits, isFinal, callback);
+        }
     }
 
     /**
@@ -81,44 +120,72 @@ class Rfc6455Tx implements FrameTx {
      */
     @Override
     public void sendBinaryAsync(byte[] data) {
+        sendBinaryAsync(data, null);
+    }
+
+    /**
+     * @throws IllegalStateException {@inheritDoc}
+     */
+    @Override
+    public void sendBinaryAsync(byte[] data, SendCallback callback) {
         // WsLog.v(TAG, "sendBinaryAsync");
         if (mDataLock.isLocked()) {
             throw new IllegalStateException("PartialMessageWriter is holding a lock");
         }
-        sendBinaryFrame(data, OpCode.BINARY, true);
+        sendBinaryFrame(data, OpCode.BINARY, true, callback);
     }
 
     @Override
     public void sendBinaryAsyncPrivileged(byte[] data, boolean continuation, boolean isFinal) {
-        sendBinaryFrame(data, continuation ? OpCode.CONTINUATION : OpCode.BINARY, isFinal);
+        sendBinaryFrame(data, continuation ? OpCode.CONTINUATION : OpCode.BINARY, isFinal, null);
     }
 
-    private void sendBinaryFrame(byte[] data, byte opcode, boolean isFinal) {
+    private void sendBinaryFrame(byte[] data, byte opcode, boolean isFinal, SendCallback callback) {
         ByteBuffer buff = ByteBuffer.wrap(data);
-        byte extensionBits = 0;
-        for (Extension ext : mExtensions) {
-            try {
-                buff = ext.filter().onSendingBinary(buff);
-                extensionBits = (byte) (extensionBits | ext.reservedBits());
-            } catch (IOException e) {
-                // Filtering error. Send original data.
-                WsLog.v(TAG, e.getMessage());
-            }
+        if (mExtensions.isEmpty()) {
+            sendFrameAsync(opcode, buff, (byte) 0, isFinal, callback);
+            return;
         }
 
-        sendFrameAsync(opcode, buff, extensionBits, isFinal);
+        synchronized (mFilterLock) {
+            byte extensionBits = 0;
+            for (Extension ext : mExtensions) {
+                try {
+                    ByteBuffer filtered = ext.filter().onSendingBinary(buff);
+                    if (filtered != null) {
+                        buff = filtered;
+                        extensionBits = (byte) (extensionBits | ext.reservedBits());
+                    }
+                } catch (IOException e) {
+                    // Filtering error. Send original data.
+                    WsLog.v(TAG, e.getMessage());
+                }
+            }
+
+            sendFrameAsync(opcode, buff, extensionBits, isFinal, callback);
+        }
     }
 
     @Override
     public void sendPingAsync(String message) {
+        sendPingAsync(message, null);
+    }
+
+    @Override
+    public void sendPingAsync(String message, SendCallback callback) {
         // WsLog.v(TAG, "sendPingAsync");
-        sendFrameAsync(OpCode.PING, ByteBuffer.wrap(BinaryUtil.fromText(message)), (byte) 0, true);
+        sendFrameAsync(OpCode.PING, ByteBuffer.wrap(BinaryUtil.fromText(message)), (byte) 0, true, callback);
     }
 
     @Override
-    public void sendPongAsync(String pingMessage) {
-        // WsLog.v(TAG, "sendPongAsync", pingMessage);
-        sendFrameAsync(OpCode.PONG, ByteBuffer.wrap(BinaryUtil.fromText(pingMessage)), (byte) 0, true);
+    public void sendPingAsync(byte[] payload) {
+        sendFrameAsync(OpCode.PING, ByteBuffer.wrap(payload), (byte) 0, true, null);
+    }
+
+    @Override
+    public void sendPongAsync(byte[] pingPayload) {
+        // WsLog.v(TAG, "sendPongAsync");
+        sendFrameAsync(OpCode.PONG, ByteBuffer.wrap(pingPayload), (byte) 0, true, null);
     }
 
     @Override
@@ -131,7 +198,7 @@ class Rfc6455Tx implements FrameTx {
         payload.put(messageBytes);
         payload.flip();
 
-        sendFrameAsync(OpCode.CONNECTION_CLOSE, payload, (byte) 0, true);
+        sendFrameAsync(OpCode.CONNECTION_CLOSE, payload, (byte) 0, true, null);
     }
 
     @Override
@@ -158,9 +225,12 @@ class Rfc6455Tx implements FrameTx {
         mDataLock.unlock();
     }
 
-    private void sendFrameAsync(byte opcode, ByteBuffer payload, byte extensionFlags, boolean isFinal) {
+    private void sendFrameAsync(byte opcode, ByteBuffer payload, byte extensionFlags, boolean isFinal, SendCallback callback) {
         synchronized (mCloseFlagLock) {
             if (mIsCloseSent) {
+                if (callback != null) {
+                    callback.onFailed(new IOException("Close frame is already sent"));
+                }
                 return;
             }
             if (opcode == OpCode.CONNECTION_CLOSE) {
@@ -168,46 +238,29 @@ class Rfc6455Tx implements FrameTx {
             }
         }
 
-        long payloadLength = payload.remaining(); // Maximum length of array is Integer.MAX_VALUE
-        int headerLength = (payloadLength <= 125) ? 2 : (payloadLength <= 65535 ? 4 : 10);
-        byte[] header = new byte[headerLength];
+        int payloadLength = payload.remaining();
+        ByteBuffer buffer = mPool.acquire(MAX_CLIENT_HEADER_LENGTH + payloadLength);
 
         byte firstBase = isFinal ? (byte) (0x80) : 0;
-        header[0] = (byte) (firstBase | opcode | extensionFlags);
-
-        if (headerLength == 2) {
-            if (mIsClient) {
-                header[1] = (byte) (0x80 | payloadLength);
-            } else {
-                header[1] = (byte) (payloadLength);
-            }
-        } else if (headerLength == 4) {
-            if (mIsClient) {
-                header[1] = (byte) 0xfe;
-            } else {
-                header[1] = 0x7e;
-            }
-            header[2] = (byte) (payloadLength >>> 8);
-            header[3] = (byte) (payloadLength);
+        buffer.put((byte) (firstBase | opcode | extensionFlags));
+
+        byte maskBit = mIsClient ? (byte) 0x80 : 0;
+        if (payloadLength <= 125) {
+            buffer.put((byte) (maskBit | payloadLength));
+        } else if (payloadLength <= 65535) {
+            buffer.put((byte) (maskBit | 0x7e));
+            buffer.put((byte) (payloadLength >>> 8));
+            buffer.put((byte) payloadLength);
         } else {
-            if (mIsClient) {
-                header[1] = (byte) 0xff;
-            } else {
-                header[1] = (byte) 0x7f;
-            }
-            header[2] = (byte) (payloadLength >>> 56);
-            header[3] = (byte) (payloadLength >>> 48);
-            header[4] = (byte) (payloadLength >>> 40);
-            header[5] = (byte) (payloadLength >>> 32);
-            header[6] = (byte) (payloadLength >>> 24);
-            header[7] = (byte) (payloadLength >>> 16);
-            header[8] = (byte) (payloadLength >>> 8);
-            header[9] = (byte) (payloadLength);
+            // Maximum length of array is Integer.MAX_VALUE
+            buffer.put((byte) (maskBit | 0x7f));
+            buffer.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0);
+            buffer.put((byte) (payloadLength >>> 24));
+            buffer.put((byte) (payloadLength >>> 16));
+            buffer.put((byte) (payloadLength >>> 8));
+            buffer.put((byte) payloadLength);
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(MAX_CLIENT_HEADER_LENGTH + payload.remaining());
-        buffer.put(header);
-
         if (mIsClient) {
             int mask = ThreadLocalRandom.current().nextInt();
             byte[] maskingKey = {
@@ -217,12 +270,13 @@ class Rfc6455Tx implements FrameTx {
                     (byte) (mask >>> 24)
             };
             buffer.put(maskingKey);
-            BinaryUtil.maskAll(payload, maskingKey);
+            // Mask while copying not to modify the caller's data.
+            BinaryUtil.maskCopy(payload, buffer, maskingKey);
+        } else {
+            buffer.put(payload);
         }
-
-        buffer.put(payload);
         buffer.flip();
 
-        mWriter.writeAsync(buffer);
+        mWriter.writeAsync(buffer, callback);
     }
 }
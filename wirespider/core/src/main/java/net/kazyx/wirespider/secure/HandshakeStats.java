@@ -0,0 +1,70 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.secure;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the TLS session resumption.
+ */
+class HandshakeStats {
+    private final AtomicLong mResumed = new AtomicLong();
+    private final AtomicLong mFull = new AtomicLong();
+
+    /**
+     * Must be called before the handshake starts, since a session resumed by TLS 1.3 is removed from the cache.
+     *
+     * @param context Session context from which the engine looks up a session to resume.
+     * @param host Host name of the peer.
+     * @param port Port number of the peer.
+     * @return IDs of the cached sessions of the peer.
+     */
+    static Set<ByteBuffer> cachedSessionIds(SSLSessionContext context, String host, int port) {
+        Set<ByteBuffer> ids = new HashSet<>();
+        Enumeration<byte[]> itr = context.getIds();
+        while (itr.hasMoreElements()) {
+            byte[] id = itr.nextElement();
+            SSLSession session = context.getSession(id);
+            if (session != null && session.getPeerPort() == port && host.equalsIgnoreCase(session.getPeerHost())) {
+                ids.add(ByteBuffer.wrap(id));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * A resumed session is one of the sessions cached before the handshake.
+     * A full handshake establishes a session with a new ID.
+     *
+     * @param session Session established by the handshake.
+     * @param cachedSessionIds IDs of the cached sessions of the peer given by {@link #cachedSessionIds(SSLSessionContext, String, int)}.
+     */
+    void onHandshakeCompleted(SSLSession session, Set<ByteBuffer> cachedSessionIds) {
+        if (cachedSessionIds.contains(ByteBuffer.wrap(session.getId()))) {
+            mResumed.incrementAndGet();
+        } else {
+            mFull.incrementAndGet();
+        }
+    }
+
+    long resumedCount() {
+        return mResumed.get();
+    }
+
+    long fullCount() {
+        return mFull.get();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.secure;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides the size of outbound TLS records of a connection.<br>
+ * Small records are used at the start and after idle periods to minimize time to first byte,
+ * and full records are used during sustained transfer to maximize throughput.
+ * <p>
+ * This is not thread safe. It must be used on the selector thread.
+ * </p>
+ */
+final class RecordSizer {
+    /**
+     * Size of records which fit in a single TCP segment, so that each record can be decrypted as soon as it arrives.
+     */
+    static final int SMALL_RECORD_SIZE = 1400;
+
+    /**
+     * Number of bytes to be sent in small records before switching to full records.
+     */
+    static final long SMALL_RECORD_BYTES = 1024 * 1024;
+
+    /**
+     * Idle period after which records get small again, since congestion window might be shrunk.
+     */
+    static final long IDLE_RESET_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int mMaxRecordSize;
+
+    /**
+     * Number of plaintext bytes wrapped since the connection started or got idle.
+     */
+    private long mBytesSinceIdle = 0;
+    private long mLastWrappedAt;
+
+    /**
+     * @param maxRecordSize Maximum number of plaintext bytes in a record.
+     * @param now Time in nanoseconds when the connection started.
+     */
+    RecordSizer(int maxRecordSize, long now) {
+        mMaxRecordSize = maxRecordSize;
+        mLastWrappedAt = now;
+    }
+
+    /**
+     * @param now Current time in nanoseconds.
+     * @return Maximum number of plaintext bytes in the next record.
+     */
+    int nextRecordSize(long now) {
+        if (now - mLastWrappedAt > IDLE_RESET_NANOS) {
+            mBytesSinceIdle = 0;
+        }
+        mLastWrappedAt = now;
+        return mBytesSinceIdle < SMALL_RECORD_BYTES ? Math.min(SMALL_RECORD_SIZE, mMaxRecordSize) : mMaxRecordSize;
+    }
+
+    /**
+     * @param plaintext Number of plaintext bytes wrapped into a record.
+     */
+    void onWrapped(int plaintext) {
+        mBytesSinceIdle += plaintext;
+    }
+}
@@ -9,25 +9,34 @@
 
 package net.kazyx.wirespider.secure;
 
+import net.kazyx.wirespider.SelectorLoop;
 import net.kazyx.wirespider.Session;
 import net.kazyx.wirespider.util.IOUtil;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 class SecureSession implements Session {
-    private static final int WRITE_BUFFER_SIZE = 1024 * 4;
+    /**
+     * Maximum length of plaintext in a TLS record.
+     */
+    private static final int MAX_RECORD_PLAINTEXT = 1024 * 16;
 
     private final SecureSocketChannel mChannel;
 
-    SecureSession(SSLContext sslContext, SelectionKey key) throws IOException {
-        SSLEngine sslEngine = sslContext.createSSLEngine();
+    /**
+     * @param cachedSessionIds IDs of the sessions which the engine might resume,
+     * or {@code null} not to count the handshake in {@code stats}.
+     */
+    SecureSession(SSLEngine sslEngine, SelectionKey key, SelectorLoop loop,
+                  Executor taskExecutor, HandshakeStats stats, Set<ByteBuffer> cachedSessionIds, boolean coalesce) throws IOException {
         sslEngine.setUseClientMode(true);
 
-        mChannel = new SecureSocketChannel(key, sslEngine, WRITE_BUFFER_SIZE);
+        mChannel = new SecureSocketChannel(key, loop, sslEngine, MAX_RECORD_PLAINTEXT, taskExecutor, stats, cachedSessionIds, coalesce);
         mChannel.init();
     }
 
@@ -38,7 +47,12 @@ class SecureSession implements Session {
 
     @Override
     public void enqueueWrite(ByteBuffer buffer) throws IOException {
-        mChannel.wrapAndEnqueue(buffer);
+        enqueueWrite(buffer, false);
+    }
+
+    @Override
+    public void enqueueWrite(ByteBuffer buffer, boolean calledOnSelectorThread) throws IOException {
+        mChannel.enqueue(buffer, calledOnSelectorThread);
     }
 
     @Override
@@ -9,26 +9,141 @@
 
 package net.kazyx.wirespider.secure;
 
+import net.kazyx.wirespider.SelectorLoop;
 import net.kazyx.wirespider.SessionFactory;
+import net.kazyx.wirespider.SessionRequest;
+import net.kazyx.wirespider.WebSocket;
+import net.kazyx.wirespider.delegate.SslEngineFactory;
 import net.kazyx.wirespider.util.WsLog;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class SecureSessionFactory implements SessionFactory {
     private static final String TAG = SecureSessionFactory.class.getSimpleName();
 
     private static SSLContext sSslContext;
 
+    private volatile Executor mTaskExecutor;
+
+    /*
+     * Session cache settings. Guarded by this.
+     */
+    private int mSessionCacheSize = -1;
+    private int mSessionTimeout = -1;
+
+    /**
+     * {@link SSLContext} whose client session cache is configured with the current settings. Guarded by this.
+     */
+    private SSLContext mConfiguredContext;
+
+    private volatile boolean mCoalesce = true;
+
+    private volatile SslEngineFactory mEngineFactory;
+
+    private final HandshakeStats mStats = new HandshakeStats();
+
+    /**
+     * Set executor to run delegated tasks of SSLEngine, e.g. certificate validation and key exchange.<br>
+     * The handshake is resumed on the selector thread when the tasks are finished.
+     * If the executor rejects the tasks, they are run on the selector thread.
+     *
+     * @param executor Executor of the delegated tasks. {@code null} to run them on the selector thread.
+     */
+    public void setDelegatedTaskExecutor(Executor executor) {
+        mTaskExecutor = executor;
+    }
+
+    /**
+     * Configure client session cache of the {@link SSLContext} to be used.<br>
+     * The cache belongs to the {@link SSLContext}, thus the settings are shared with other users of the same context.
+     * They are applied once to each context when the first connection is opened with it after this call.
+     *
+     * @param size Maximum number of cached sessions. {@code 0} means no limit.
+     * @param timeoutSeconds Lifetime of cached sessions in seconds. {@code 0} means no limit.
+     */
+    public synchronized void setSessionCache(int size, int timeoutSeconds) {
+        mSessionCacheSize = size;
+        mSessionTimeout = timeoutSeconds;
+        mConfiguredContext = null;
+    }
+
+    /**
+     * @param factory Factory of SSLEngine. {@code null} to create engines from the default {@link SSLContext}.
+     */
+    public void setSslEngineFactory(SslEngineFactory factory) {
+        mEngineFactory = factory;
+    }
+
+    /**
+     * @param coalesce {@code true} to gather queued messages into full TLS records, {@code false} to wrap each message separately.
+     */
+    public void setRecordCoalescing(boolean coalesce) {
+        mCoalesce = coalesce;
+    }
+
+    /**
+     * Handshakes of engines created by {@link SslEngineFactory} are not counted.
+     *
+     * @return Number of handshakes which resumed a cached session.
+     */
+    public long resumedHandshakeCount() {
+        return mStats.resumedCount();
+    }
+
+    /**
+     * Handshakes of engines created by {@link SslEngineFactory} are not counted.
+     *
+     * @return Number of handshakes which established a new session.
+     */
+    public long fullHandshakeCount() {
+        return mStats.fullCount();
+    }
+
     @Override
-    public SecureSession createNew(SelectionKey key) throws IOException {
-        try {
-            return new SecureSession(getSslContext(), key);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException(e);
+    public SecureSession createNew(SelectionKey key, SelectorLoop loop, SessionRequest req) throws IOException {
+        URI uri = req.uri();
+        String host = uri.getHost();
+        int port = uri.getPort() == -1 ? WebSocket.DEFAULT_WSS_PORT : uri.getPort();
+
+        SslEngineFactory factory = req.sslEngineFactory() != null ? req.sslEngineFactory() : mEngineFactory;
+        SSLEngine engine;
+        Set<ByteBuffer> cachedSessionIds;
+        if (factory != null) {
+            engine = factory.createSslEngine(host, port);
+            // Session cache of the engine is not visible.
+            cachedSessionIds = null;
+        } else {
+            SSLContext context;
+            try {
+                context = getSslContext();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            configureSessionCache(context);
+            // Peer host and port are the key to look up a cached session for resumption.
+            engine = context.createSSLEngine(host, port);
+            cachedSessionIds = HandshakeStats.cachedSessionIds(context.getClientSessionContext(), host, port);
+        }
+        return new SecureSession(engine, key, loop, mTaskExecutor, mStats, cachedSessionIds, mCoalesce);
+    }
+
+    private synchronized void configureSessionCache(SSLContext context) {
+        if (mSessionCacheSize < 0 || context == mConfiguredContext) {
+            return;
         }
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        sessionContext.setSessionCacheSize(mSessionCacheSize);
+        sessionContext.setSessionTimeout(mSessionTimeout);
+        mConfiguredContext = context;
     }
 
     public static void setSslContext(SSLContext context) {
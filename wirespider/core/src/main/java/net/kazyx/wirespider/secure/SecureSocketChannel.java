@@ -9,6 +9,8 @@
 
 package net.kazyx.wirespider.secure;
 
+import net.kazyx.wirespider.BufferPool;
+import net.kazyx.wirespider.SelectorLoop;
 import net.kazyx.wirespider.Session;
 import net.kazyx.wirespider.util.IOUtil;
 import net.kazyx.wirespider.util.SelectionKeyUtil;
@@ -23,6 +25,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class SecureSocketChannel implements Closeable {
     private static final String TAG = SecureSocketChannel.class.getSimpleName();
@@ -30,55 +39,201 @@ class SecureSocketChannel implements Closeable {
     private final SelectionKey mKey;
     private final SocketChannel mChannel;
     private final SSLEngine mSslEngine;
-
+    private final SelectorLoop mLoop;
+    private final BufferPool mPool;
+    private final Executor mTaskExecutor;
+    private final HandshakeStats mStats;
+    private final boolean mCoalesce;
+
+    /**
+     * IDs of the sessions which might be resumed by the initial handshake, or {@code null} not to count the handshake.
+     */
+    private final Set<ByteBuffer> mCachedSessionIds;
+
+    /**
+     * {@code true} while the initial handshake is in progress.
+     */
+    private boolean mHandshaking;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final int mMaxRecordPlaintext;
+    private int mPacketBufferSize;
+    private int mAppBufferSize;
+
+    /*
+     * Buffers below are acquired from the pool of the loop only while they are in use, and null otherwise,
+     * so that an idle connection holds no buffer except a partial record.
+     */
+
+    /**
+     * Received ciphertext not unwrapped yet, in write mode.
+     */
     private ByteBuffer mNetIn;
+
+    /**
+     * Wrapped ciphertext not written yet, in write mode.
+     */
     private ByteBuffer mNetOut;
-    private static final Object mOutSync = new Object();
 
+    /**
+     * Unwrapped plaintext to be handed to the listener, in write mode.
+     */
     private ByteBuffer mAppIn;
-    private final ByteBuffer mAppOut;
 
-    SecureSocketChannel(SelectionKey key, SSLEngine sslEngine, int appOutBufferSize) {
+    /**
+     * Plaintext taken from {@link #mPendingQueue} and not wrapped yet, in write mode.
+     */
+    private ByteBuffer mAppOut;
+
+    /**
+     * Cumulative number of bytes of the ciphertext produced by wrap and written to the socket.
+     */
+    private long mNetProduced = 0;
+    private long mNetWritten = 0;
+
+    /**
+     * Cumulative ciphertext end offset and plaintext length of each wrapped record, which is not written yet.
+     */
+    private final ArrayDeque<long[]> mUnsentRecords = new ArrayDeque<>();
+
+    /**
+     * Plaintext enqueued by any thread, to be wrapped on the selector thread.
+     */
+    private final Queue<ByteBuffer> mPendingQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * {@code true} while OP_WRITE is requested to drain {@link #mPendingQueue}.
+     */
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+
+    /**
+     * {@code true} after {@link #close()} is called, to release the buffers only once.
+     */
+    private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+    private final RecordSizer mRecordSizer;
+
+    /**
+     * {@code true} while delegated tasks of {@link #mSslEngine} are running on {@link #mTaskExecutor}.<br>
+     * Accessed only on the selector thread.
+     */
+    private boolean mTaskRunning = false;
+
+    /**
+     * @param appOutBufferSize Maximum number of plaintext bytes to be wrapped into a record.
+     * @param taskExecutor Executor to run delegated tasks of the engine. {@code null} to run them on the selector thread.
+     * @param cachedSessionIds IDs of the sessions which the engine might resume, or {@code null} not to count the handshake.
+     * @param coalesce {@code true} to gather queued messages into a record, {@code false} to wrap each message separately.
+     */
+    SecureSocketChannel(SelectionKey key, SelectorLoop loop, SSLEngine sslEngine, int appOutBufferSize, Executor taskExecutor,
+                        HandshakeStats stats, Set<ByteBuffer> cachedSessionIds, boolean coalesce) {
         mKey = key;
         mChannel = (SocketChannel) key.channel();
+        mLoop = loop;
         mSslEngine = sslEngine;
+        mPool = loop.bufferPool();
+        mTaskExecutor = taskExecutor;
+        mStats = stats;
+        mCachedSessionIds = cachedSessionIds;
+        mCoalesce = coalesce;
 
-        SSLSession sslSession = sslEngine.getSession();
-
-        int packetBufferSize = sslSession.getPacketBufferSize();
-        mNetOut = ByteBuffer.allocateDirect(packetBufferSize);
-        mNetIn = ByteBuffer.allocateDirect(packetBufferSize);
+        mMaxRecordPlaintext = appOutBufferSize;
+        mRecordSizer = new RecordSizer(appOutBufferSize, System.nanoTime());
 
-        mAppOut = ByteBuffer.allocateDirect(appOutBufferSize);
-        mAppIn = ByteBuffer.allocateDirect(sslSession.getApplicationBufferSize());
+        SSLSession sslSession = sslEngine.getSession();
+        mPacketBufferSize = sslSession.getPacketBufferSize();
+        mAppBufferSize = sslSession.getApplicationBufferSize();
     }
 
     void init() throws IOException {
+        mHandshaking = true;
         mSslEngine.beginHandshake();
         evaluateCurrentStatus();
     }
 
-    void wrapAndEnqueue(ByteBuffer src) throws IOException {
-        // WsLog.v(TAG, "Wrap and Enqueue");
-        synchronized (mOutSync) {
-            while (src.remaining() != 0) {
-                if (mAppOut.remaining() < src.remaining()) {
-                    byte[] tmp = new byte[mAppOut.remaining()];
-                    src.get(tmp);
-                    mAppOut.put(tmp);
-                } else {
-                    mAppOut.put(src);
-                }
+    /**
+     * Enqueue plaintext to be wrapped and written on the selector thread.<br>
+     * This method never blocks and can be called on any thread.
+     *
+     * @param src Plaintext to send. Released to the pool after it is wrapped.
+     * @param calledOnSelectorThread {@code true} if this is called on the selector thread.
+     * @throws IOException If the connection is already closed.
+     */
+    void enqueue(ByteBuffer src, boolean calledOnSelectorThread) throws IOException {
+        if (!mKey.isValid()) {
+            throw new IOException("SelectionKey is invalid");
+        }
+        mPendingQueue.add(src);
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            requestWrite(!calledOnSelectorThread);
+        }
+    }
+
+    /**
+     * @param wakeup {@code true} to interrupt the blocking select, which is required unless called on the selector thread.
+     */
+    private void requestWrite(boolean wakeup) throws IOException {
+        if (mKey.interestOps() != (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) {
+            SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            if (wakeup) {
+                mKey.selector().wakeup();
+            }
+        }
+    }
 
-                mAppOut.flip();
-                wrap();
-                mAppOut.compact();
+    /**
+     * Move pending plaintext into {@link #mAppOut} and wrap it.<br>
+     * In coalescing mode, messages queued until the selector thread flushes are gathered up to the size given by {@link RecordSizer}.
+     *
+     * @return {@code false} if no ciphertext is produced, e.g. there is no pending plaintext.
+     */
+    private boolean wrapPending() throws IOException {
+        ByteBuffer src = mPendingQueue.peek();
+        if (src == null && mAppOut == null) {
+            return false;
+        }
+        if (mAppOut == null) {
+            mAppOut = mPool.acquire(mMaxRecordPlaintext);
+        }
+        mAppOut.limit(Math.max(mAppOut.position(), mRecordSizer.nextRecordSize(System.nanoTime())));
+        while (src != null && mAppOut.hasRemaining()) {
+            if (mAppOut.remaining() < src.remaining()) {
+                int limit = src.limit();
+                src.limit(src.position() + mAppOut.remaining());
+                mAppOut.put(src);
+                src.limit(limit);
+            } else {
+                mAppOut.put(src);
+                mPendingQueue.poll();
+                mPool.release(src);
+                if (!mCoalesce) {
+                    break;
+                }
+                src = mPendingQueue.peek();
             }
         }
+
+        long produced = mNetProduced;
+        mAppOut.flip();
+        int plaintext = mAppOut.remaining();
+        wrap(mAppOut);
+        mRecordSizer.onWrapped(plaintext - mAppOut.remaining());
+        if (mAppOut.hasRemaining()) {
+            mAppOut.compact();
+        } else {
+            mPool.release(mAppOut);
+            mAppOut = null;
+        }
+        return mNetProduced != produced;
     }
 
     void onReadReady() throws IOException {
         // WsLog.v(TAG, "onReadReady");
+        if (mTaskRunning) {
+            suspendIo();
+            return;
+        }
         unwrap();
     }
 
@@ -88,21 +243,22 @@ class SecureSocketChannel implements Closeable {
         mListener = listener;
     }
 
+    /**
+     * Hand plaintext accumulated in {@link #mAppIn} to the listener as a single pooled buffer.<br>
+     * The listener takes the ownership of the buffer, so that it is not copied.
+     */
     private void onUnwrapped() {
         // WsLog.v(TAG, "onUnwrapped");
-        if (mListener == null) {
+        if (mAppIn == null || mAppIn.position() == 0) {
             return;
         }
-
-        mAppIn.flip();
-        if (mAppIn.limit() == 0) {
+        if (mListener == null) {
             mAppIn.clear();
             return;
         }
 
-        ByteBuffer ret = ByteBuffer.allocate(mAppIn.limit());
-        ret.put(mAppIn);
-        mAppIn.clear();
+        ByteBuffer ret = mAppIn;
+        mAppIn = null;
         ret.flip();
 
         // WsLog.v(TAG, "Unwrapped", ret);
@@ -118,48 +274,118 @@ class SecureSocketChannel implements Closeable {
 
         switch (hsStatus) {
             case NEED_TASK:
-                Runnable task;
-                while ((task = mSslEngine.getDelegatedTask()) != null) {
-                    task.run();
+                if (mTaskExecutor == null) {
+                    runDelegatedTasks();
+                    evaluateCurrentStatus();
+                } else {
+                    runDelegatedTasksAsync();
                 }
-                evaluateCurrentStatus();
                 break;
             case NEED_WRAP:
-                synchronized (mOutSync) {
-                    mAppOut.flip();
-                    wrap();
-                    mAppOut.compact();
-                }
+                wrap(EMPTY);
                 break;
             case NEED_UNWRAP:
                 unwrap();
                 break;
             case FINISHED:
-                WsLog.d(TAG, "SSL handshake completed: ", mSslEngine.getSession().getProtocol());
-                if (mListener != null) {
-                    mListener.onConnected();
-                }
+                onHandshakeFinished();
                 return;
             default:
                 break;
         }
     }
 
-    private void wrap() throws IOException {
-        SSLEngineResult result = mSslEngine.wrap(mAppOut, mNetOut);
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mSslEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Run delegated tasks off the selector thread, e.g. certificate validation and key exchange.<br>
+     * I/O of this connection is suspended meanwhile, and the handshake is resumed on the selector thread
+     * by requesting write readiness when the tasks are finished.
+     */
+    private void runDelegatedTasksAsync() throws IOException {
+        mTaskRunning = true;
+        suspendIo();
+        final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                mTaskRunning = false;
+                try {
+                    requestWrite(false);
+                } catch (IOException e) {
+                    WsLog.d(TAG, "Connection closed while running delegated tasks");
+                }
+            }
+        };
+        try {
+            mTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runDelegatedTasks();
+                    } finally {
+                        mLoop.execute(resume);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            WsLog.d(TAG, "Delegated tasks rejected, run them on the selector thread");
+            runDelegatedTasks();
+            resume.run();
+        }
+    }
+
+    private void onHandshakeFinished() {
+        if (!mHandshaking) {
+            // Post-handshake messages, e.g. NewSessionTicket of TLS 1.3.
+            return;
+        }
+        WsLog.d(TAG, "SSL handshake completed: ", mSslEngine.getSession().getProtocol());
+        if (mCachedSessionIds != null) {
+            mStats.onHandshakeCompleted(mSslEngine.getSession(), mCachedSessionIds);
+        }
+        mHandshaking = false;
+        if (mListener != null) {
+            mListener.onConnected();
+        }
+    }
+
+    private void suspendIo() throws IOException {
+        SelectionKeyUtil.interestOps(mKey, 0);
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        if (mNetOut == null) {
+            mNetOut = mPool.acquire(mPacketBufferSize);
+        }
+        SSLEngineResult result = mSslEngine.wrap(src, mNetOut);
         // WsLog.v(TAG, "wrap: ", result.toString());
 
         final SSLEngineResult.Status status = result.getStatus();
         switch (status) {
             case OK:
-                if (mKey.interestOps() != (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) {
-                    SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                    mKey.selector().wakeup();
+                mNetProduced += result.bytesProduced();
+                if (result.bytesConsumed() != 0) {
+                    mUnsentRecords.addLast(new long[]{mNetProduced, result.bytesConsumed()});
+                }
+                if (mNetOut.position() != 0) {
+                    requestWrite(false);
+                } else {
+                    mPool.release(mNetOut);
+                    mNetOut = null;
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    onHandshakeFinished();
                 }
                 break;
             case BUFFER_OVERFLOW:
-                mNetOut = reallocateByOverflow(mNetOut, mSslEngine.getSession().getPacketBufferSize());
-                wrap();
+                mPacketBufferSize = mSslEngine.getSession().getPacketBufferSize();
+                mNetOut = grow(mNetOut, mNetOut.position() + mPacketBufferSize);
+                wrap(src);
                 break;
             case CLOSED:
                 WsLog.d(TAG, "SSLEngine wrap result: CLOSED");
@@ -170,14 +396,49 @@ class SecureSocketChannel implements Closeable {
         }
     }
 
+    /**
+     * Wrap pending plaintext and write the ciphertext until the socket send buffer gets full.<br>
+     * Called only on the selector thread, so that wrap and write need no lock.
+     *
+     * @throws IOException If some other I/O error occurs
+     */
     void flush() throws IOException {
         // WsLog.d(TAG, "flush");
-        synchronized (mOutSync) {
-            mNetOut.flip();
-            mChannel.write(mNetOut);
-            mNetOut.compact();
-            if (mNetOut.position() == 0) {
-                SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ);
+        if (mTaskRunning) {
+            suspendIo();
+            return;
+        }
+        while (true) {
+            if (mNetOut != null) {
+                mNetOut.flip();
+                mNetWritten += mChannel.write(mNetOut);
+                if (mNetOut.hasRemaining()) {
+                    // Socket send buffer is full.
+                    mNetOut.compact();
+                    break;
+                }
+                mPool.release(mNetOut);
+                mNetOut = null;
+            }
+            if (!wrapPending()) {
+                break;
+            }
+        }
+
+        int sent = 0;
+        while (!mUnsentRecords.isEmpty() && mUnsentRecords.getFirst()[0] <= mNetWritten) {
+            sent += mUnsentRecords.removeFirst()[1];
+        }
+        if (sent != 0 && mListener != null) {
+            mListener.onAppDataSent(sent);
+        }
+
+        if (mNetOut == null && mAppOut == null && mPendingQueue.isEmpty()) {
+            SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ);
+            mFlushScheduled.set(false);
+            // Data might be enqueued after the queue is checked.
+            if (!mPendingQueue.isEmpty() && mFlushScheduled.compareAndSet(false, true)) {
+                requestWrite(false);
             }
         }
 
@@ -185,57 +446,130 @@ class SecureSocketChannel implements Closeable {
     }
 
     private void unwrap() throws IOException {
-        if (mNetIn.position() == 0) {
+        prepareNetIn();
+        try {
             final int count = mChannel.read(mNetIn);
             if (count == -1) {
                 close();
                 throw new IOException("Detected end of stream");
             }
-        }
-
-        mNetIn.flip();
-        SSLEngineResult result = mSslEngine.unwrap(mNetIn, mAppIn);
-        mNetIn.compact();
-        // WsLog.d(TAG, "unwrap: ", result.toString());
 
-        final SSLEngineResult.Status status = result.getStatus();
-        switch (status) {
-            case OK:
+            do {
+                SSLEngineResult.HandshakeStatus hsStatus = unwrapBuffered();
                 onUnwrapped();
-                evaluateStatus(result.getHandshakeStatus());
-                break;
-            case BUFFER_UNDERFLOW:
-                mNetIn = reallocateByUnderflow(mNetIn, mAppIn, mSslEngine.getSession().getPacketBufferSize());
-                break;
-            case BUFFER_OVERFLOW:
-                mAppIn = reallocateByOverflow(mAppIn, mSslEngine.getSession().getApplicationBufferSize());
-                unwrap();
-                break;
-            case CLOSED:
-                WsLog.d(TAG, "SSLEngine unwrap result: CLOSED");
-                close();
-                break;
-            default:
-                break;
+                if (hsStatus == null) {
+                    return;
+                }
+                evaluateStatus(hsStatus);
+                // Records following the handshake messages might be already buffered.
+            } while (mNetIn != null && mNetIn.position() != 0 && !mTaskRunning && mChannel.isOpen());
+        } finally {
+            releaseInboundBuffers();
         }
     }
 
-    private static ByteBuffer reallocateByOverflow(ByteBuffer dst, int newSize) {
-        ByteBuffer newBuffer = ByteBuffer.allocateDirect(dst.position() + newSize);
-        dst.flip();
-        newBuffer.put(dst);
-        // WsLog.d(TAG, "Original: " + dst.capacity() + ", New: " + newBuffer.capacity());
-        return newBuffer;
+    /**
+     * Acquire a buffer large enough to read a full record, which contains the partial record of the last read if exists.
+     */
+    private void prepareNetIn() {
+        if (mNetIn == null) {
+            mNetIn = mPool.acquire(mPacketBufferSize);
+        } else if (mNetIn.capacity() < mPacketBufferSize + mNetIn.position()) {
+            mNetIn = grow(mNetIn, mPacketBufferSize + mNetIn.position());
+        }
+        // Read as much as the actual capacity allows.
+        mNetIn.limit(mNetIn.capacity());
     }
 
-    private static ByteBuffer reallocateByUnderflow(ByteBuffer src, ByteBuffer dst, int newSize) {
-        if (newSize > dst.capacity()) {
-            ByteBuffer newBuffer = ByteBuffer.allocateDirect(newSize);
-            src.flip();
-            newBuffer.put(src);
-            return newBuffer;
+    /**
+     * Give the buffers back to the pool, keeping only the bytes of a partial record.
+     */
+    private void releaseInboundBuffers() {
+        if (mAppIn != null) {
+            mPool.release(mAppIn);
+            mAppIn = null;
+        }
+        if (mNetIn == null) {
+            return;
+        }
+        int partial = mNetIn.position();
+        if (partial == 0) {
+            mPool.release(mNetIn);
+            mNetIn = null;
+        } else if (partial < mNetIn.capacity() / 2) {
+            mNetIn = grow(mNetIn, partial);
         }
-        return src;
+    }
+
+    /**
+     * Unwrap all complete records buffered in {@link #mNetIn}.<br>
+     * Plaintext is accumulated in {@link #mAppIn} and handed to the listener when it gets full.
+     *
+     * @return Handshake status to be handled before unwrapping following records,
+     * or {@code null} if no more records can be unwrapped for now.
+     */
+    private SSLEngineResult.HandshakeStatus unwrapBuffered() throws IOException {
+        mNetIn.flip();
+        try {
+            while (mNetIn.hasRemaining()) {
+                if (mAppIn == null) {
+                    mAppIn = mPool.acquire(mAppBufferSize);
+                }
+                SSLEngineResult result = mSslEngine.unwrap(mNetIn, mAppIn);
+                // WsLog.d(TAG, "unwrap: ", result.toString());
+
+                switch (result.getStatus()) {
+                    case OK:
+                        SSLEngineResult.HandshakeStatus hsStatus = result.getHandshakeStatus();
+                        switch (hsStatus) {
+                            case NEED_TASK:
+                            case NEED_WRAP:
+                            case FINISHED:
+                                return hsStatus;
+                            default:
+                                break;
+                        }
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                            return null;
+                        }
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        mPacketBufferSize = mSslEngine.getSession().getPacketBufferSize();
+                        // Wait for the rest of the record.
+                        return null;
+                    case BUFFER_OVERFLOW:
+                        if (mAppIn.position() != 0) {
+                            onUnwrapped();
+                        } else {
+                            mAppBufferSize = mSslEngine.getSession().getApplicationBufferSize();
+                            mAppIn = grow(mAppIn, mAppIn.capacity() + mAppBufferSize);
+                        }
+                        break;
+                    case CLOSED:
+                        WsLog.d(TAG, "SSLEngine unwrap result: CLOSED");
+                        close();
+                        return null;
+                    default:
+                        break;
+                }
+            }
+            return null;
+        } finally {
+            mNetIn.compact();
+        }
+    }
+
+    /**
+     * @param buffer Pooled buffer in write mode.
+     * @param capacity Required capacity.
+     * @return Pooled buffer in write mode containing the bytes of {@code buffer}, which is released to the pool.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer newBuffer = mPool.acquire(capacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        mPool.release(buffer);
+        return newBuffer;
     }
 
     @Override
@@ -250,5 +584,38 @@ class SecureSocketChannel implements Closeable {
         if (mChannel.isOpen()) {
             IOUtil.close(mChannel);
         }
+        if (mClosed.compareAndSet(false, true)) {
+            // Buffers might be in use on the selector thread at this moment, e.g. closed while unwrapping.
+            mLoop.execute(mBufferReleaser);
+        }
     }
+
+    /**
+     * Give all buffers of this connection back to the pool. Run on the selector thread only once after closed.
+     */
+    private final Runnable mBufferReleaser = new Runnable() {
+        @Override
+        public void run() {
+            if (mNetIn != null) {
+                mPool.release(mNetIn);
+                mNetIn = null;
+            }
+            if (mNetOut != null) {
+                mPool.release(mNetOut);
+                mNetOut = null;
+            }
+            if (mAppIn != null) {
+                mPool.release(mAppIn);
+                mAppIn = null;
+            }
+            if (mAppOut != null) {
+                mPool.release(mAppOut);
+                mAppOut = null;
+            }
+            ByteBuffer pending;
+            while ((pending = mPendingQueue.poll()) != null) {
+                mPool.release(pending);
+            }
+        }
+    };
 }
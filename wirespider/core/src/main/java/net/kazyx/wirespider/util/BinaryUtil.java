@@ -9,7 +9,9 @@
 
 package net.kazyx.wirespider.util;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 
 public final class BinaryUtil {
@@ -38,6 +40,25 @@ public final class BinaryUtil {
         return new String(bytes.array(), UTF8);
     }
 
+    /**
+     * Convert the next {@code length} bytes of the buffer to UTF-8 String.<br>
+     * Position of the buffer is advanced by {@code length}.
+     *
+     * @param buffer Source byte buffer.
+     * @param length Number of bytes to convert.
+     * @return String expression of the bytes.
+     */
+    public static String toText(ByteBuffer buffer, int length) {
+        if (buffer.hasArray()) {
+            int position = buffer.position();
+            buffer.position(position + length);
+            return new String(buffer.array(), buffer.arrayOffset() + position, length, UTF8);
+        }
+        byte[] array = new byte[length];
+        buffer.get(array);
+        return new String(array, UTF8);
+    }
+
     /**
      * Convert remaining byte buffer to byte array.
      *
@@ -65,7 +86,8 @@ public final class BinaryUtil {
     }
 
     /**
-     * Convert whole byte buffer to long.
+     * Convert remaining byte buffer to long.<br>
+     * Position of the buffer is not changed.
      *
      * @param bytes Source byte buffer.
      * @return The long value
@@ -76,8 +98,8 @@ public final class BinaryUtil {
             throw new IllegalArgumentException("bit length overflow: " + bytes.remaining());
         }
         long value = 0;
-        for (byte b : bytes.array()) {
-            value = (value << 8) + (b & 0xFF);
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            value = (value << 8) + (bytes.get(i) & 0xFF);
         }
         if (value < 0) {
             throw new IllegalArgumentException("Exceeds int64 range: " + value);
@@ -86,7 +108,8 @@ public final class BinaryUtil {
     }
 
     /**
-     * Convert whole byte buffer to unsigned integer.
+     * Convert remaining byte buffer to unsigned integer.<br>
+     * Position of the buffer is not changed.
      *
      * @param bytes Source byte buffer.
      * @return The unsigned integer value.
@@ -132,15 +155,73 @@ public final class BinaryUtil {
     }
 
     /**
-     * Mask payload to send data from client.
+     * Mask or unmask remaining bytes of the payload in place.<br>
+     * The first remaining byte is masked with the first byte of the masking key. Position and limit are not changed.
+     * <p>
+     * Processes 8 bytes at a time. Works on both of heap and direct buffers.
+     * </p>
      *
-     * @param payload Source raw payload.
-     * @param maskingKey Masking key
+     * @param payload Payload to be masked.
+     * @param maskingKey 4 bytes masking key.
      */
     public static void maskAll(ByteBuffer payload, byte[] maskingKey) {
-        byte[] array = payload.array();
-        for (int i = 0; i < array.length; i++) {
-            array[i] = (byte) (array[i] ^ maskingKey[i & 3]); // MOD 4
+        int start = payload.position();
+        int limit = payload.limit();
+        long mask = toLongMask(maskingKey, payload.order());
+
+        int index = start;
+        for (; index + 8 <= limit; index += 8) {
+            payload.putLong(index, payload.getLong(index) ^ mask);
+        }
+        for (; index < limit; index++) {
+            payload.put(index, (byte) (payload.get(index) ^ maskingKey[(index - start) & 3])); // MOD 4
+        }
+    }
+
+    /**
+     * Copy remaining bytes of the source to the destination with masking.<br>
+     * The source is not modified. Positions of both buffers are advanced by the number of copied bytes.
+     *
+     * @param src Source raw payload.
+     * @param dst Destination buffer. Must have enough space for the remaining bytes of the source.
+     * @param maskingKey 4 bytes masking key.
+     * @throws java.nio.BufferOverflowException Remaining space of the destination is not enough.
+     */
+    public static void maskCopy(ByteBuffer src, ByteBuffer dst, byte[] maskingKey) {
+        int length = src.remaining();
+        if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int srcStart = src.position();
+        int dstStart = dst.position();
+        long mask = toLongMask(maskingKey, dst.order());
+        boolean swap = src.order() != dst.order();
+
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long value = src.getLong(srcStart + i);
+            if (swap) {
+                value = Long.reverseBytes(value);
+            }
+            dst.putLong(dstStart + i, value ^ mask);
+        }
+        for (; i < length; i++) {
+            dst.put(dstStart + i, (byte) (src.get(srcStart + i) ^ maskingKey[i & 3])); // MOD 4
+        }
+
+        src.position(srcStart + length);
+        dst.position(dstStart + length);
+    }
+
+    /**
+     * @return Masking key repeated twice in the given byte order.
+     */
+    private static long toLongMask(byte[] maskingKey, ByteOrder order) {
+        int key = ((maskingKey[0] & 0xFF) << 24) | ((maskingKey[1] & 0xFF) << 16) | ((maskingKey[2] & 0xFF) << 8) | (maskingKey[3] & 0xFF);
+        if (order == ByteOrder.LITTLE_ENDIAN) {
+            key = Integer.reverseBytes(key);
         }
+        long half = key & 0xFFFFFFFFL;
+        return (half << 32) | half;
     }
 }
@@ -19,12 +19,12 @@ public class FailOnCallbackRxListener implements FrameRx.Listener {
     }
 
     @Override
-    public void onPingFrame(String message) {
+    public void onPingFrame(byte[] payload) {
         fail();
     }
 
     @Override
-    public void onPongFrame(String message) {
+    public void onPongFrame(byte[] payload) {
         fail();
     }
 
@@ -0,0 +1,71 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HeartbeatStatsTest {
+    @Test
+    public void emptyStats() {
+        HeartbeatStats stats = new HeartbeatStats();
+        assertThat(stats.sentCount(), is(0L));
+        assertThat(stats.pongCount(), is(0L));
+        assertThat(stats.missedCount(), is(0L));
+        assertThat(stats.smoothedRtt(TimeUnit.NANOSECONDS), is(0L));
+        assertThat(stats.histogram().length, is(HeartbeatStats.HISTOGRAM_BUCKETS));
+    }
+
+    @Test
+    public void firstSampleInitializesSmoothedRtt() {
+        HeartbeatStats stats = new HeartbeatStats();
+        stats.onPingSent();
+        stats.onPongReceived(TimeUnit.MILLISECONDS.toNanos(40));
+        assertThat(stats.sentCount(), is(1L));
+        assertThat(stats.pongCount(), is(1L));
+        assertThat(stats.lastRtt(TimeUnit.MILLISECONDS), is(40L));
+        assertThat(stats.smoothedRtt(TimeUnit.MILLISECONDS), is(40L));
+    }
+
+    @Test
+    public void smoothedRttMovesByOneEighth() {
+        HeartbeatStats stats = new HeartbeatStats();
+        stats.onPongReceived(TimeUnit.MILLISECONDS.toNanos(80));
+        stats.onPongReceived(TimeUnit.MILLISECONDS.toNanos(160));
+        assertThat(stats.lastRtt(TimeUnit.MILLISECONDS), is(160L));
+        assertThat(stats.smoothedRtt(TimeUnit.MILLISECONDS), is(90L));
+    }
+
+    @Test
+    public void histogramBuckets() {
+        assertThat(HeartbeatStats.bucketOf(TimeUnit.MICROSECONDS.toNanos(999)), is(0));
+        assertThat(HeartbeatStats.bucketOf(TimeUnit.MILLISECONDS.toNanos(1)), is(1));
+        assertThat(HeartbeatStats.bucketOf(TimeUnit.MILLISECONDS.toNanos(3)), is(2));
+        assertThat(HeartbeatStats.bucketOf(TimeUnit.MILLISECONDS.toNanos(4)), is(3));
+        assertThat(HeartbeatStats.bucketOf(TimeUnit.HOURS.toNanos(1)), is(HeartbeatStats.HISTOGRAM_BUCKETS - 1));
+    }
+
+    @Test
+    public void histogramIsSnapshot() {
+        HeartbeatStats stats = new HeartbeatStats();
+        stats.onPongReceived(TimeUnit.MILLISECONDS.toNanos(5));
+        long[] snapshot = stats.histogram();
+        assertThat(snapshot[3], is(1L));
+
+        snapshot[3] = 100;
+        stats.onPongMissed();
+        assertThat(stats.histogram()[3], is(1L));
+        assertThat(stats.missedCount(), is(1L));
+    }
+}
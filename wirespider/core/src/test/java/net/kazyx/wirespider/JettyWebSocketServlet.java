@@ -69,6 +69,13 @@ public class JettyWebSocketServlet {
 
     public static final String ASSERT_REQUEST = "assert";
 
+    /**
+     * Followed by the number of messages to be sent back to back, e.g. {@code "burst:100"}.
+     */
+    public static final String BURST_REQUEST = "burst:";
+
+    public static final String BURST_MESSAGE = "burst-";
+
     @OnWebSocketMessage
     public void onTextMessage(String message) throws InterruptedException, IOException {
         if (message.equals(CLOSE_REQUEST)) {
@@ -84,6 +91,12 @@ public class JettyWebSocketServlet {
         } else if (message.equals(ASSERT_REQUEST)) {
             System.out.println("JettyWebSocketServlet: assertRequested");
             WebSocketClientTest.callbackAssert();
+        } else if (message.startsWith(BURST_REQUEST)) {
+            int count = Integer.parseInt(message.substring(BURST_REQUEST.length()));
+            System.out.println("JettyWebSocketServlet: burst request received: " + count);
+            for (int i = 0; i < count; i++) {
+                mSession.getRemote().sendStringByFuture(BURST_MESSAGE + i);
+            }
         } else {
             mSession.getRemote().sendStringByFuture(message);
         }
@@ -12,37 +12,86 @@ package net.kazyx.wirespider;
 import net.kazyx.wirespider.util.Base64;
 import net.kazyx.wirespider.util.WsLog;
 import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
 import org.junit.BeforeClass;
+import net.kazyx.wirespider.delegate.SslEngineFactory;
 import org.junit.Test;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import java.io.IOException;
 import java.net.URI;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assume.assumeThat;
 
 public class SecureSessionTest {
     private static final String TAG = SecureSessionTest.class.getSimpleName();
 
-    public static class ExternalServerEchoTest {
+    private static final String WS_URI = "ws://localhost:10000";
+    private static final String WSS_URI = "wss://localhost:10443";
+
+    private static TestWebSocketServer sServer;
+
+    private static void bootServer() throws Exception {
+        Base64.setEncoder(new Base64Encoder());
+        WsLog.logLevel(WsLog.Level.DEBUG);
+        sServer = new TestWebSocketServer(10000, 10443);
+        sServer.boot();
+    }
+
+    private static void shutdownServer() throws Exception {
+        sServer.shutdown();
+    }
+
+    public static class LocalServerEchoTest {
         @BeforeClass
         public static void setupClass() throws Exception {
-            Base64.setEncoder(new Base64Encoder());
-            WsLog.logLevel(WsLog.Level.DEBUG);
+            bootServer();
+        }
+
+        @AfterClass
+        public static void teardownClass() throws Exception {
+            shutdownServer();
         }
 
-        private void echoExternalServer(String url, final String echoMessage) throws ExecutionException, InterruptedException, TimeoutException, IOException, NoSuchAlgorithmException {
+        @Before
+        public void setup() throws Exception {
+            WebSocketFactory.setSslContext(TestWebSocketServer.trustingSslContext("TLS"));
+        }
+
+        @After
+        public void tearDown() {
+            WebSocketFactory.setSslContext(null);
+        }
+
+        private void echo(String url, final String echoMessage) throws ExecutionException, InterruptedException, TimeoutException, IOException {
             final CustomLatch latch = new CustomLatch(1);
             WebSocketHandler handler = new WebSocketHandler() {
                 @Override
                 public void onTextMessage(String message) {
-                    WsLog.d(TAG, "Received: " + message);
                     if (message.equals(echoMessage)) {
                         latch.countDown();
                     } else {
@@ -62,14 +111,14 @@ public class SecureSessionTest {
                 }
             };
             SessionRequest req = new SessionRequest.Builder(URI.create(url), handler)
+                    .setMaxResponsePayloadSizeInBytes(JettyWebSocketServlet.MAX_SIZE_1MB)
                     .setConnectionTimeout(5, TimeUnit.SECONDS)
                     .build();
 
             WebSocketFactory factory = new WebSocketFactory();
 
-            try (WebSocket ws = factory.openAsync(req, true).get(20, TimeUnit.SECONDS)) {
+            try (WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS)) {
                 assertThat(ws.isConnected(), is(true));
-                WsLog.d(TAG, "Send: " + echoMessage);
                 ws.sendTextMessageAsync(echoMessage);
                 assertThat(latch.awaitSuccess(5, TimeUnit.SECONDS), is(true));
             } finally {
@@ -78,48 +127,320 @@ public class SecureSessionTest {
         }
 
         @Test
-        public void echoWebSocketOrgInsecure() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException {
-            echoExternalServer("ws://echo.websocket.org", TestUtil.fixedLengthRandomString(128));
+        public void echoInsecure() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            echo(WS_URI, TestUtil.fixedLengthRandomString(128));
+        }
+
+        @Test
+        public void echoSecure() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            echo(WSS_URI, TestUtil.fixedLengthRandomString(128));
+        }
+
+        @Test
+        public void echoSecureLargeMessage() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            // Spans multiple TLS records in both directions.
+            echo(WSS_URI, TestUtil.fixedLengthFixedString(100000));
+        }
+
+        @Test
+        public void concurrentSendersEcho() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            final int senders = 8;
+            final int messagesPerSender = 200;
+            final Set<String> expected = new HashSet<>();
+            for (int t = 0; t < senders; t++) {
+                for (int i = 0; i < messagesPerSender; i++) {
+                    expected.add(t + "-" + i + "-" + TestUtil.fixedLengthFixedString(i * 7));
+                }
+            }
+            final Set<String> received = Collections.synchronizedSet(new HashSet<String>());
+            final CustomLatch latch = new CustomLatch(expected.size());
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), new SilentEventHandler() {
+                @Override
+                public void onTextMessage(String message) {
+                    if (expected.contains(message) && received.add(message)) {
+                        latch.countDown();
+                    } else {
+                        WsLog.d(TAG, "Unexpected message: " + message);
+                        latch.unlockByFailure();
+                    }
+                }
+
+                @Override
+                public void onClosed(int code, String reason) {
+                    latch.unlockByFailure();
+                }
+            }).setConnectionTimeout(5, TimeUnit.SECONDS).build();
+
+            WebSocketFactory factory = new WebSocketFactory();
+            ExecutorService executor = Executors.newFixedThreadPool(senders);
+            try (final WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS)) {
+                // Messages are enqueued by many threads at once, and wrapped on the selector thread.
+                final CountDownLatch start = new CountDownLatch(1);
+                for (int t = 0; t < senders; t++) {
+                    final int sender = t;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            for (int i = 0; i < messagesPerSender; i++) {
+                                ws.sendTextMessageAsync(sender + "-" + i + "-" + TestUtil.fixedLengthFixedString(i * 7));
+                            }
+                        }
+                    });
+                }
+                start.countDown();
+                assertThat(latch.awaitSuccess(10, TimeUnit.SECONDS), is(true));
+                assertThat(received, is(expected));
+            } finally {
+                executor.shutdownNow();
+                factory.destroy();
+            }
+        }
+
+        @Test
+        public void burstOfSmallFramesIsDeliveredAtOnce() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            final int count = 1000;
+            final AtomicInteger next = new AtomicInteger();
+            final CustomLatch latch = new CustomLatch(count);
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), new SilentEventHandler() {
+                @Override
+                public void onTextMessage(String message) {
+                    if (message.equals(JettyWebSocketServlet.BURST_MESSAGE + next.getAndIncrement())) {
+                        latch.countDown();
+                    } else {
+                        WsLog.d(TAG, "Unexpected message: " + message);
+                        latch.unlockByFailure();
+                    }
+                }
+
+                @Override
+                public void onClosed(int code, String reason) {
+                    latch.unlockByFailure();
+                }
+            }).setConnectionTimeout(5, TimeUnit.SECONDS).build();
+
+            WebSocketFactory factory = new WebSocketFactory();
+            try (WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS)) {
+                // Many records arrive on a read event and the server gets silent after them,
+                // thus records left in the buffer would never be delivered.
+                ws.sendTextMessageAsync(JettyWebSocketServlet.BURST_REQUEST + count);
+                assertThat(latch.awaitSuccess(5, TimeUnit.SECONDS), is(true));
+            } finally {
+                factory.destroy();
+            }
+        }
+    }
+
+    public static class RecordCoalescingTest {
+        @BeforeClass
+        public static void setupClass() throws Exception {
+            bootServer();
+        }
+
+        @AfterClass
+        public static void teardownClass() throws Exception {
+            shutdownServer();
+        }
+
+        @Before
+        public void setup() throws Exception {
+            WebSocketFactory.setSslContext(TestWebSocketServer.trustingSslContext("TLS"));
+        }
+
+        @After
+        public void tearDown() {
+            WebSocketFactory.setSslContext(null);
+        }
+
+        /**
+         * Send many small messages followed by large ones, which exceed the amount sent in small records.
+         */
+        private void echoMixedMessages(boolean coalesce) throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            final List<byte[]> messages = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                messages.add(TestUtil.fixedLengthRandomByteArray(i % 100 + 1));
+            }
+            for (int i = 0; i < 40; i++) {
+                messages.add(TestUtil.fixedLengthRandomByteArray(64 * 1024 + i));
+            }
+
+            final AtomicInteger next = new AtomicInteger();
+            final CustomLatch latch = new CustomLatch(messages.size());
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), new SilentEventHandler() {
+                @Override
+                public void onBinaryMessage(byte[] message) {
+                    if (Arrays.equals(message, messages.get(next.getAndIncrement()))) {
+                        latch.countDown();
+                    } else {
+                        WsLog.d(TAG, "Message not matched: " + (next.get() - 1));
+                        latch.unlockByFailure();
+                    }
+                }
+
+                @Override
+                public void onClosed(int code, String reason) {
+                    latch.unlockByFailure();
+                }
+            }).setMaxResponsePayloadSizeInBytes(JettyWebSocketServlet.MAX_SIZE_1MB)
+                    .setConnectionTimeout(5, TimeUnit.SECONDS)
+                    .build();
+
+            WebSocketFactory factory = new WebSocketFactory();
+            factory.setTlsRecordCoalescing(coalesce);
+            try (WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS)) {
+                for (byte[] message : messages) {
+                    ws.sendBinaryMessageAsync(message);
+                }
+                assertThat(latch.awaitSuccess(10, TimeUnit.SECONDS), is(true));
+            } finally {
+                factory.destroy();
+            }
         }
 
         @Test
-        public void echoWebSocketOrgSecureDefaultPort() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException {
-            // Note: this test fails on JDK 7, since it disables TLS 1.1 on the client side by default.
-            echoExternalServer("wss://echo.websocket.org", TestUtil.fixedLengthRandomString(128));
+        public void coalescingEnabled() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            echoMixedMessages(true);
         }
 
         @Test
-        public void echoWebSocketOrgSecurePort443() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException {
-            // Note: this test fails on JDK 7, since it disables TLS 1.1 on the client side by default.
-            echoExternalServer("wss://echo.websocket.org:443", TestUtil.fixedLengthRandomString(128));
+        public void coalescingDisabled() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            echoMixedMessages(false);
+        }
+    }
+
+    public static class BufferReleaseTest {
+        @BeforeClass
+        public static void setupClass() throws Exception {
+            bootServer();
+        }
+
+        @AfterClass
+        public static void teardownClass() throws Exception {
+            shutdownServer();
+        }
+
+        @Before
+        public void setup() throws Exception {
+            WebSocketFactory.setSslContext(TestWebSocketServer.trustingSslContext("TLS"));
+        }
+
+        @After
+        public void tearDown() {
+            WebSocketFactory.setSslContext(null);
+        }
+
+        /**
+         * Pool which keeps track of the buffers acquired from it and not released yet.
+         */
+        private static class TrackingBufferPool implements BufferPool {
+            private final BufferPool mPool = new SizeClassBufferPool();
+            private final Set<ByteBuffer> mAcquired = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+            private final Set<ByteBuffer> mReleased = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+            private int mDoubleReleased = 0;
+
+            @Override
+            public ByteBuffer acquire(int capacity) {
+                ByteBuffer buffer = mPool.acquire(capacity);
+                synchronized (this) {
+                    mReleased.remove(buffer);
+                    mAcquired.add(buffer);
+                }
+                return buffer;
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                synchronized (this) {
+                    if (mAcquired.remove(buffer)) {
+                        mReleased.add(buffer);
+                    } else if (mReleased.contains(buffer)) {
+                        mDoubleReleased++;
+                        return;
+                    }
+                }
+                mPool.release(buffer);
+            }
+
+            synchronized int outstanding() {
+                return mAcquired.size();
+            }
+
+            synchronized int doubleReleased() {
+                return mDoubleReleased;
+            }
         }
 
-        /* Sometimes fails. Need to be fixed.
         @Test
-        public void echoWebSocketOrgSecureLargeMessage() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException {
-            echoExternalServer("wss://echo.websocket.org", TestUtil.fixedLengthRandomString(4096));
+        public void buffersAreReleasedOnCloseDuringTransfer() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            final TrackingBufferPool pool = new TrackingBufferPool();
+            final CustomLatch received = new CustomLatch(1);
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), new SilentEventHandler() {
+                @Override
+                public void onBinaryMessage(byte[] message) {
+                    received.countDown();
+                }
+            }).setMaxResponsePayloadSizeInBytes(JettyWebSocketServlet.MAX_SIZE_1MB)
+                    .setConnectionTimeout(5, TimeUnit.SECONDS)
+                    .build();
+
+            WebSocketFactory factory = new WebSocketFactory(1);
+            factory.setBufferPoolFactory(new BufferPool.Factory() {
+                @Override
+                public BufferPool newBufferPool() {
+                    return pool;
+                }
+            });
+            try {
+                WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS);
+                byte[] data = TestUtil.fixedLengthRandomByteArray(JettyWebSocketServlet.MAX_SIZE_1MB / 2);
+                for (int i = 0; i < 8; i++) {
+                    ws.sendBinaryMessageAsync(data);
+                }
+                // Close while the messages are being sent and echoed.
+                assertThat(received.awaitSuccess(5, TimeUnit.SECONDS), is(true));
+                ws.close();
+
+                long deadline = System.currentTimeMillis() + 1000;
+                while (pool.outstanding() != 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertThat(pool.outstanding(), is(0));
+                assertThat(pool.doubleReleased(), is(0));
+            } finally {
+                factory.destroy();
+            }
         }
-        */
     }
 
     public static class SSLContextTest {
         @BeforeClass
         public static void setupClass() throws Exception {
-            Base64.setEncoder(new Base64Encoder());
-            WsLog.logLevel(WsLog.Level.DEBUG);
+            bootServer();
+        }
+
+        @AfterClass
+        public static void teardownClass() throws Exception {
+            shutdownServer();
         }
 
         @After
-        public void tearDown() throws NoSuchAlgorithmException {
+        public void tearDown() {
             WebSocketFactory.setSslContext(null);
         }
 
-        private void echoExternalServer(String protocol) throws ExecutionException, InterruptedException, TimeoutException, IOException, NoSuchAlgorithmException, KeyManagementException {
+        private void echo(String protocol) throws ExecutionException, InterruptedException, TimeoutException, IOException, GeneralSecurityException {
+            SSLContext context = TestWebSocketServer.trustingSslContext(protocol);
+            // e.g. TLS 1.1 is disabled by the recent runtimes.
+            assumeThat(Arrays.asList(context.getDefaultSSLParameters().getProtocols()), hasItem(protocol));
+
             final CustomLatch latch = new CustomLatch(1);
             WebSocketHandler handler = new WebSocketHandler() {
                 @Override
                 public void onTextMessage(String message) {
-                    WsLog.d(TAG, "Received: " + message);
                     if (message.equals("hello")) {
                         latch.countDown();
                     } else {
@@ -138,18 +459,15 @@ public class SecureSessionTest {
                     latch.unlockByFailure();
                 }
             };
-            SessionRequest req = new SessionRequest.Builder(URI.create("wss://echo.websocket.org"), handler)
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), handler)
                     .setConnectionTimeout(5, TimeUnit.SECONDS)
                     .build();
 
             WebSocketFactory factory = new WebSocketFactory();
-            SSLContext context = SSLContext.getInstance(protocol);
-            context.init(null, null, null);
             WebSocketFactory.setSslContext(context);
 
-            try (WebSocket ws = factory.openAsync(req, true).get(20, TimeUnit.SECONDS)) {
+            try (WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS)) {
                 assertThat(ws.isConnected(), is(true));
-                WsLog.d(TAG, "Send: hello");
                 ws.sendTextMessageAsync("hello");
                 assertThat(latch.awaitSuccess(5, TimeUnit.SECONDS), is(true));
             } finally {
@@ -158,13 +476,256 @@ public class SecureSessionTest {
         }
 
         @Test
-        public void TLSv1_1() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException, KeyManagementException {
-            echoExternalServer("TLSv1.1");
+        public void TLSv1_1() throws InterruptedException, ExecutionException, TimeoutException, IOException, GeneralSecurityException {
+            echo("TLSv1.1");
+        }
+
+        @Test
+        public void TLSv1_2() throws InterruptedException, ExecutionException, TimeoutException, IOException, GeneralSecurityException {
+            echo("TLSv1.2");
+        }
+    }
+
+    public static class SessionResumptionTest {
+        @BeforeClass
+        public static void setupClass() throws Exception {
+            bootServer();
+        }
+
+        @AfterClass
+        public static void teardownClass() throws Exception {
+            shutdownServer();
+        }
+
+        @After
+        public void tearDown() {
+            WebSocketFactory.setSslContext(null);
+        }
+
+        /**
+         * @param protocol Protocol of {@link SSLContext}, which is the highest version enabled by the client.
+         * @return Fresh context, so that no session is cached before the test.
+         */
+        private static SSLContext freshContext(String protocol) throws IOException, GeneralSecurityException {
+            SSLContext context = TestWebSocketServer.trustingSslContext(protocol);
+            assumeThat(Arrays.asList(context.getDefaultSSLParameters().getProtocols()), hasItem(protocol));
+            WebSocketFactory.setSslContext(context);
+            return context;
+        }
+
+        private static void connect(WebSocketFactory factory, int count) throws InterruptedException, ExecutionException, TimeoutException {
+            final CustomLatch[] latch = new CustomLatch[1];
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), new SilentEventHandler() {
+                @Override
+                public void onTextMessage(String message) {
+                    latch[0].countDown();
+                }
+            }).setConnectionTimeout(5, TimeUnit.SECONDS).build();
+
+            for (int i = 0; i < count; i++) {
+                latch[0] = new CustomLatch(1);
+                try (WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS)) {
+                    assertThat(ws.isConnected(), is(true));
+                    // Session ticket which might be sent after the handshake is received before the echo.
+                    ws.sendTextMessageAsync("hello");
+                    assertThat(latch[0].awaitSuccess(5, TimeUnit.SECONDS), is(true));
+                }
+            }
+        }
+
+        private static List<SSLSession> cachedSessions(SSLContext context) {
+            List<SSLSession> sessions = new ArrayList<>();
+            SSLSessionContext sessionContext = context.getClientSessionContext();
+            for (Enumeration<byte[]> ids = sessionContext.getIds(); ids.hasMoreElements(); ) {
+                // Null if the session is expired or invalidated.
+                SSLSession session = sessionContext.getSession(ids.nextElement());
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+            return sessions;
+        }
+
+        private void reconnectionResumesSession(String protocol) throws InterruptedException, ExecutionException, TimeoutException,
+                IOException, GeneralSecurityException {
+            SSLContext context = freshContext(protocol);
+            WebSocketFactory factory = new WebSocketFactory();
+            factory.setTlsSessionCache(16, 60);
+            try {
+                connect(factory, 3);
+                Set<String> protocols = new HashSet<>();
+                for (SSLSession session : cachedSessions(context)) {
+                    protocols.add(session.getProtocol());
+                }
+                assertThat(protocols, is(Collections.singleton(protocol)));
+                assertThat(factory.tlsFullHandshakeCount(), is(1L));
+                assertThat(factory.tlsResumedHandshakeCount(), is(2L));
+            } finally {
+                factory.destroy();
+            }
+        }
+
+        @Test
+        public void reconnectionResumesSessionTLSv1_2() throws InterruptedException, ExecutionException, TimeoutException,
+                IOException, GeneralSecurityException {
+            reconnectionResumesSession("TLSv1.2");
+        }
+
+        @Test
+        public void reconnectionResumesSessionTLSv1_3() throws InterruptedException, ExecutionException, TimeoutException,
+                IOException, GeneralSecurityException {
+            reconnectionResumesSession("TLSv1.3");
+        }
+
+        @Test
+        public void invalidatedSessionIsNotResumed() throws InterruptedException, ExecutionException, TimeoutException,
+                IOException, GeneralSecurityException {
+            SSLContext context = freshContext("TLSv1.3");
+            WebSocketFactory factory = new WebSocketFactory();
+            factory.setTlsSessionCache(16, 60);
+            try {
+                connect(factory, 1);
+                for (SSLSession session : cachedSessions(context)) {
+                    session.invalidate();
+                }
+                connect(factory, 1);
+                assertThat(factory.tlsFullHandshakeCount(), is(2L));
+                assertThat(factory.tlsResumedHandshakeCount(), is(0L));
+            } finally {
+                factory.destroy();
+            }
+        }
+
+        @Test
+        public void sessionCacheIsConfiguredOnce() throws InterruptedException, ExecutionException, TimeoutException,
+                IOException, GeneralSecurityException {
+            SSLContext context = freshContext("TLSv1.3");
+            WebSocketFactory factory = new WebSocketFactory();
+            factory.setTlsSessionCache(16, 60);
+            try {
+                connect(factory, 1);
+                SSLSessionContext sessions = context.getClientSessionContext();
+                assertThat(sessions.getSessionCacheSize(), is(16));
+                assertThat(sessions.getSessionTimeout(), is(60));
+
+                // Settings of other users of the shared context are not overwritten by every connection.
+                sessions.setSessionCacheSize(32);
+                connect(factory, 1);
+                assertThat(sessions.getSessionCacheSize(), is(32));
+
+                // New settings are applied to the next connection.
+                factory.setTlsSessionCache(8, 30);
+                connect(factory, 1);
+                assertThat(sessions.getSessionCacheSize(), is(8));
+                assertThat(sessions.getSessionTimeout(), is(30));
+            } finally {
+                factory.destroy();
+            }
         }
 
         @Test
-        public void TLSv1_2() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException, KeyManagementException {
-            echoExternalServer("TLSv1.2");
+        public void sslEngineFactoryIsNotCounted() throws InterruptedException, ExecutionException, TimeoutException,
+                IOException, GeneralSecurityException {
+            final SSLContext context = TestWebSocketServer.trustingSslContext("TLS");
+            WebSocketFactory factory = new WebSocketFactory();
+            factory.setSslEngineFactory(new SslEngineFactory() {
+                @Override
+                public SSLEngine createSslEngine(String host, int port) {
+                    return context.createSSLEngine(host, port);
+                }
+            });
+            try {
+                connect(factory, 2);
+                assertThat(factory.tlsFullHandshakeCount(), is(0L));
+                assertThat(factory.tlsResumedHandshakeCount(), is(0L));
+            } finally {
+                factory.destroy();
+            }
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void negativeSessionCacheSize() throws IOException {
+            WebSocketFactory factory = new WebSocketFactory();
+            try {
+                factory.setTlsSessionCache(-1, 60);
+            } finally {
+                factory.destroy();
+            }
+        }
+    }
+
+    public static class SslEngineFactoryTest {
+        @BeforeClass
+        public static void setupClass() throws Exception {
+            bootServer();
+        }
+
+        @AfterClass
+        public static void teardownClass() throws Exception {
+            shutdownServer();
+        }
+
+        private static class TlsV12EngineFactory implements SslEngineFactory {
+            private final AtomicInteger mCount = new AtomicInteger();
+            private SSLEngine mEngine;
+
+            @Override
+            public SSLEngine createSslEngine(String host, int port) throws IOException {
+                mCount.incrementAndGet();
+                try {
+                    SSLContext context = TestWebSocketServer.trustingSslContext("TLSv1.2");
+                    mEngine = context.createSSLEngine(host, port);
+                    mEngine.setEnabledProtocols(new String[]{"TLSv1.2"});
+                    return mEngine;
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        private void connect(WebSocketFactory factory, SessionRequest req) throws InterruptedException, ExecutionException, TimeoutException {
+            try (WebSocket ws = factory.openAsync(req).get(5, TimeUnit.SECONDS)) {
+                assertThat(ws.isConnected(), is(true));
+            }
+        }
+
+        @Test
+        public void factoryLevel() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            TlsV12EngineFactory engineFactory = new TlsV12EngineFactory();
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), new SilentEventHandler())
+                    .setConnectionTimeout(5, TimeUnit.SECONDS)
+                    .build();
+
+            WebSocketFactory factory = new WebSocketFactory();
+            factory.setSslEngineFactory(engineFactory);
+            try {
+                connect(factory, req);
+                assertThat(engineFactory.mCount.get(), is(1));
+                assertThat(engineFactory.mEngine.getUseClientMode(), is(true));
+                assertThat(engineFactory.mEngine.getSession().getProtocol(), is("TLSv1.2"));
+            } finally {
+                factory.destroy();
+            }
+        }
+
+        @Test
+        public void requestLevelOverridesFactoryLevel() throws InterruptedException, ExecutionException, TimeoutException, IOException {
+            TlsV12EngineFactory factoryLevel = new TlsV12EngineFactory();
+            TlsV12EngineFactory requestLevel = new TlsV12EngineFactory();
+            SessionRequest req = new SessionRequest.Builder(URI.create(WSS_URI), new SilentEventHandler())
+                    .setConnectionTimeout(5, TimeUnit.SECONDS)
+                    .setSslEngineFactory(requestLevel)
+                    .build();
+
+            WebSocketFactory factory = new WebSocketFactory();
+            factory.setSslEngineFactory(factoryLevel);
+            try {
+                connect(factory, req);
+                assertThat(factoryLevel.mCount.get(), is(0));
+                assertThat(requestLevel.mCount.get(), is(1));
+            } finally {
+                factory.destroy();
+            }
         }
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SessionManagerTest {
+    private SessionManager mManager;
+
+    @Before
+    public void setup() throws IOException {
+        mManager = new SessionManager(SelectorProvider.provider(), 2);
+    }
+
+    @After
+    public void teardown() {
+        mManager.destroy();
+    }
+
+    private static class Resource implements Closeable {
+        final CountDownLatch mClosed = new CountDownLatch(1);
+
+        @Override
+        public void close() {
+            mClosed.countDown();
+        }
+    }
+
+    private static final SelectorLoop.ResourceFactory<Resource> FACTORY = new SelectorLoop.ResourceFactory<Resource>() {
+        @Override
+        public Resource newResource() {
+            return new Resource();
+        }
+    };
+
+    @Test
+    public void resourceIsSharedInLoop() {
+        SelectorLoop first = mManager.nextLoop();
+        SelectorLoop second = mManager.nextLoop();
+        assertThat(first, is(not(sameInstance(second))));
+
+        Resource resource = first.resource(FACTORY);
+        assertThat(first.resource(FACTORY), is(sameInstance(resource)));
+        assertThat(second.resource(FACTORY), is(not(sameInstance(resource))));
+    }
+
+    @Test
+    public void resourceIsClosedWithLoop() throws InterruptedException {
+        Resource resource = mManager.nextLoop().resource(FACTORY);
+        mManager.destroy();
+        assertThat(resource.mClosed.await(1, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void failingTaskDoesNotStopLoop() throws InterruptedException {
+        SelectorLoop loop = mManager.nextLoop();
+        final CountDownLatch latch = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Failure in a task");
+            }
+        });
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+    }
+}
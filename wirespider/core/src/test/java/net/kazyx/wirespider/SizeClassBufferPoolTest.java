@@ -0,0 +1,81 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SizeClassBufferPoolTest {
+    @Test
+    public void acquireRoundsUpToSizeClass() {
+        BufferPool pool = new SizeClassBufferPool();
+        ByteBuffer buffer = pool.acquire(100);
+        assertThat(buffer.isDirect(), is(true));
+        assertThat(buffer.capacity(), is(128));
+        assertThat(buffer.position(), is(0));
+        assertThat(buffer.limit(), is(100));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        BufferPool pool = new SizeClassBufferPool();
+        ByteBuffer buffer = pool.acquire(1000);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire(600);
+        assertThat(reused, is(sameInstance(buffer)));
+        assertThat(reused.position(), is(0));
+        assertThat(reused.limit(), is(600));
+    }
+
+    @Test
+    public void largeBufferIsNotPooled() {
+        BufferPool pool = new SizeClassBufferPool(true, 1024, 4);
+        ByteBuffer buffer = pool.acquire(2000);
+        assertThat(buffer.capacity(), is(2000));
+        pool.release(buffer);
+        assertThat(pool.acquire(2000), is(not(sameInstance(buffer))));
+    }
+
+    @Test
+    public void foreignBufferIsDiscarded() {
+        BufferPool pool = new SizeClassBufferPool(false, 1024, 4);
+        ByteBuffer sliced = ByteBuffer.wrap(new byte[512], 0, 256).slice();
+        pool.release(sliced);
+        ByteBuffer direct = ByteBuffer.allocateDirect(256);
+        pool.release(direct);
+
+        ByteBuffer acquired = pool.acquire(256);
+        assertThat(acquired, is(not(sameInstance(sliced))));
+        assertThat(acquired, is(not(sameInstance(direct))));
+    }
+
+    @Test
+    public void numberOfRetainedBuffersIsBounded() {
+        BufferPool pool = new SizeClassBufferPool(false, 1024, 1);
+        ByteBuffer first = pool.acquire(64);
+        ByteBuffer second = pool.acquire(64);
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.acquire(64), is(sameInstance(first)));
+        assertThat(pool.acquire(64), is(not(sameInstance(second))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveBufferSize() {
+        new SizeClassBufferPool(true, 0, 1);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SocketChannelProxyTest {
+    private static class FailingSession implements Session {
+        @Override
+        public void enqueueWrite(ByteBuffer buffer) throws IOException {
+            enqueueWrite(buffer, false);
+        }
+
+        @Override
+        public void enqueueWrite(ByteBuffer buffer, boolean calledOnSelectorThread) throws IOException {
+            throw new IOException("SelectionKey is invalid");
+        }
+
+        @Override
+        public void onFlushReady() {
+        }
+
+        @Override
+        public void onReadReady() {
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class RecordingPool implements BufferPool {
+        final List<ByteBuffer> mReleased = new ArrayList<>();
+
+        @Override
+        public ByteBuffer acquire(int capacity) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+            mReleased.add(buffer);
+        }
+    }
+
+    private static class ImmediateLoop implements SelectorLoop {
+        final RecordingPool mPool = new RecordingPool();
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public void register(WebSocket ws, int ops) {
+        }
+
+        @Override
+        public BufferPool bufferPool() {
+            return mPool;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T resource(ResourceFactory<T> factory) {
+            return factory.newResource();
+        }
+    }
+
+    private static class SilentListener implements SocketChannelProxy.Listener {
+        boolean mClosed = false;
+
+        @Override
+        public void onSocketConnected() {
+        }
+
+        @Override
+        public void onClosed() {
+            mClosed = true;
+        }
+
+        @Override
+        public void onDataReceived(ByteBuffer data) {
+        }
+
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+        }
+    }
+
+    private SilentListener mListener;
+    private ImmediateLoop mLoop;
+    private SocketChannelProxy mProxy;
+
+    @Before
+    public void setup() {
+        mListener = new SilentListener();
+        mLoop = new ImmediateLoop();
+        mProxy = new SocketChannelProxy(mListener, mLoop, 16, 64);
+        mProxy.onConnected(new FailingSession());
+    }
+
+    @Test
+    public void bufferedAmountIsRolledBackOnFailure() {
+        final IOException[] failure = new IOException[1];
+        mProxy.writeAsync(ByteBuffer.allocate(128), new SendCallback() {
+            @Override
+            public void onSent() {
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                failure[0] = e;
+            }
+        });
+        assertThat(failure[0], is(notNullValue()));
+        assertThat(mListener.mClosed, is(true));
+        assertThat(mProxy.bufferedAmount(), is(0L));
+        assertThat(mProxy.isWritable(), is(true));
+    }
+
+    @Test
+    public void bufferedAmountIsNotAddedAfterClosed() {
+        mProxy.writeAsync(ByteBuffer.allocate(128));
+        mProxy.writeAsync(ByteBuffer.allocate(128));
+        assertThat(mProxy.bufferedAmount(), is(0L));
+    }
+
+    @Test
+    public void dataIsReleasedAfterClosed() {
+        mProxy.close();
+        ByteBuffer data = ByteBuffer.allocate(128);
+        final IOException[] failure = new IOException[1];
+        mProxy.writeAsync(data, new SendCallback() {
+            @Override
+            public void onSent() {
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                failure[0] = e;
+            }
+        });
+        assertThat(failure[0], is(notNullValue()));
+        assertThat(mLoop.mPool.mReleased.size(), is(1));
+        assertThat(mLoop.mPool.mReleased.get(0), is(sameInstance(data)));
+    }
+}
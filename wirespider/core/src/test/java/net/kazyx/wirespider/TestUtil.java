@@ -45,6 +45,20 @@ public class TestUtil {
         return sb.toString();
     }
 
+    private static final String JSON_TICKER = "{\"id\":%d,\"type\":\"ticker\",\"symbol\":\"BTC-USD\",\"price\":\"%d.25\",\"volume\":\"1.5\"}";
+
+    /**
+     * @param i Sequence number of the message.
+     * @return Small JSON message in UTF-8, which shares most of its bytes with the messages of other sequence numbers.
+     */
+    public static byte[] jsonMessage(int i) {
+        try {
+            return String.format(JSON_TICKER, i, 40000 + i).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
     public static ByteBuffer asByteBuffer(String data) {
         try {
             return ByteBuffer.wrap(data.getBytes("UTF-8"));
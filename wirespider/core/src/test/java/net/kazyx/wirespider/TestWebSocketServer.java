@@ -10,8 +10,10 @@
 package net.kazyx.wirespider;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
@@ -19,6 +21,12 @@ import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -33,6 +41,47 @@ public class TestWebSocketServer {
         server = new Server(port);
     }
 
+    /**
+     * Self-signed certificate of localhost and 127.0.0.1, which is trusted by {@link #trustingSslContext(String)}.
+     */
+    private static final String KEYSTORE = "/localhost.jks";
+    private static final String KEYSTORE_PASSWORD = "wirespider";
+
+    /**
+     * @param port Port of plain WebSocket.
+     * @param securePort Port of secure WebSocket.
+     */
+    public TestWebSocketServer(int port, int securePort) throws IOException, GeneralSecurityException {
+        this(port);
+        SslContextFactory ssl = new SslContextFactory();
+        ssl.setKeyStore(keyStore());
+        ssl.setKeyStorePassword(KEYSTORE_PASSWORD);
+        ssl.setKeyManagerPassword(KEYSTORE_PASSWORD);
+        ServerConnector connector = new ServerConnector(server, ssl);
+        connector.setPort(securePort);
+        server.addConnector(connector);
+    }
+
+    private static KeyStore keyStore() throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (InputStream is = TestWebSocketServer.class.getResourceAsStream(KEYSTORE)) {
+            ks.load(is, KEYSTORE_PASSWORD.toCharArray());
+        }
+        return ks;
+    }
+
+    /**
+     * @param protocol Protocol of {@link SSLContext}.
+     * @return Client context which trusts the certificate of this server.
+     */
+    public static SSLContext trustingSslContext(String protocol) throws IOException, GeneralSecurityException {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore());
+        SSLContext context = SSLContext.getInstance(protocol);
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
     public enum Extension {
         DEFLATE("permessage-deflate", PerMessageDeflateExtension.class);
 
@@ -0,0 +1,121 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TimerWheelTest {
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    private final List<String> mFired = new ArrayList<>();
+
+    private TimerWheel.Timer addTimer(TimerWheel wheel, final String name, long deadline) {
+        TimerWheel.Timer timer = TimerWheel.newTimer(new Runnable() {
+            @Override
+            public void run() {
+                mFired.add(name);
+            }
+        }, deadline);
+        wheel.add(timer);
+        return timer;
+    }
+
+    @Test
+    public void expiresOnDeadlineTick() {
+        TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE, 0);
+        addTimer(wheel, "a", 25);
+        addTimer(wheel, "b", 40);
+
+        wheel.expire(29);
+        assertThat(mFired, is(empty()));
+        wheel.expire(30);
+        assertThat(mFired, contains("a"));
+        wheel.expire(45);
+        assertThat(mFired, contains("a", "b"));
+    }
+
+    @Test
+    public void survivesRoundsOfWheel() {
+        TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE, 0);
+        // Hashed into the same bucket as tick 2 but 3 rounds later.
+        addTimer(wheel, "far", TICK * (2 + WHEEL_SIZE * 3));
+
+        for (long now = 0; now < TICK * (2 + WHEEL_SIZE * 3); now += TICK) {
+            wheel.expire(now);
+        }
+        assertThat(mFired, is(empty()));
+        wheel.expire(TICK * (2 + WHEEL_SIZE * 3));
+        assertThat(mFired, contains("far"));
+    }
+
+    @Test
+    public void expiresAllAfterLongJump() {
+        TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE, 0);
+        addTimer(wheel, "near", TICK);
+        addTimer(wheel, "far", TICK * WHEEL_SIZE * 5);
+        addTimer(wheel, "later", TICK * WHEEL_SIZE * 20);
+
+        wheel.expire(TICK * WHEEL_SIZE * 10);
+        assertThat(mFired, containsInAnyOrder("near", "far"));
+        assertThat(wheel.millisToNextExpiration(TICK * WHEEL_SIZE * 10), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void cancelledTimerIsNotRun() {
+        TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE, 0);
+        TimerWheel.Timer timer = addTimer(wheel, "a", 20);
+        assertThat(timer.cancel(), is(true));
+        assertThat(timer.cancel(), is(false));
+
+        wheel.expire(100);
+        assertThat(mFired, is(empty()));
+        assertThat(timer.isCancelled(), is(true));
+        assertThat(wheel.millisToNextExpiration(100), is(0L));
+    }
+
+    @Test
+    public void expiredTimerCannotBeCancelled() {
+        TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE, 0);
+        TimerWheel.Timer timer = addTimer(wheel, "a", 20);
+        wheel.expire(20);
+        assertThat(timer.cancel(), is(false));
+        assertThat(timer.isCancelled(), is(false));
+    }
+
+    @Test
+    public void pastDeadlineExpiresOnNextTick() {
+        TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE, 0);
+        wheel.expire(50);
+        addTimer(wheel, "past", 10);
+
+        wheel.expire(55);
+        assertThat(mFired, is(empty()));
+        wheel.expire(60);
+        assertThat(mFired, contains("past"));
+    }
+
+    @Test
+    public void noTimerMeansInfiniteWait() {
+        TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE, 0);
+        assertThat(wheel.millisToNextExpiration(0), is(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wheelSizeNotPowerOfTwo() {
+        new TimerWheel(TICK, 6, 0);
+    }
+}
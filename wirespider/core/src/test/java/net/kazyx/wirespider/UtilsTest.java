@@ -17,7 +17,9 @@ import org.junit.Test;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -88,6 +90,95 @@ public class UtilsTest {
             byte[] empty = {};
             assertThat(Arrays.equals(BinaryUtil.fromText(null), empty), is(true));
         }
+
+        private static final byte[] MASKING_KEY = {(byte) 0x12, (byte) 0x34, (byte) 0xab, (byte) 0xcd};
+
+        private static byte[] maskBytewise(byte[] source, int offset, int length) {
+            byte[] masked = Arrays.copyOf(source, source.length);
+            for (int i = 0; i < length; i++) {
+                masked[offset + i] ^= MASKING_KEY[i & 3];
+            }
+            return masked;
+        }
+
+        private static void maskTest(ByteBuffer buffer) {
+            byte[] source = TestUtil.fixedLengthRandomByteArray(buffer.capacity());
+            buffer.clear();
+            buffer.put(source);
+            int offset = 3;
+            int length = buffer.capacity() - 8;
+            buffer.position(offset);
+            buffer.limit(offset + length);
+
+            BinaryUtil.maskAll(buffer, MASKING_KEY);
+
+            assertThat(buffer.position(), is(offset));
+            assertThat(buffer.limit(), is(offset + length));
+            byte[] result = new byte[buffer.capacity()];
+            buffer.clear();
+            buffer.get(result);
+            assertThat(Arrays.equals(result, maskBytewise(source, offset, length)), is(true));
+        }
+
+        @Test
+        public void maskHeapBuffer() {
+            maskTest(ByteBuffer.allocate(1037));
+        }
+
+        @Test
+        public void maskDirectBuffer() {
+            maskTest(ByteBuffer.allocateDirect(1037));
+        }
+
+        @Test
+        public void maskLittleEndianBuffer() {
+            maskTest(ByteBuffer.allocate(1037).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        private static void maskCopyTest(ByteBuffer src, ByteBuffer dst) {
+            byte[] source = TestUtil.fixedLengthRandomByteArray(src.capacity());
+            src.put(source);
+            src.position(3);
+            int length = src.remaining();
+            dst.position(5);
+
+            BinaryUtil.maskCopy(src, dst, MASKING_KEY);
+
+            assertThat(src.hasRemaining(), is(false));
+            assertThat(dst.position(), is(5 + length));
+            src.flip();
+            byte[] unchanged = new byte[source.length];
+            src.get(unchanged);
+            assertThat(Arrays.equals(unchanged, source), is(true));
+
+            byte[] expected = Arrays.copyOfRange(maskBytewise(source, 3, length), 3, source.length);
+            byte[] result = new byte[length];
+            dst.position(5);
+            dst.get(result);
+            assertThat(Arrays.equals(result, expected), is(true));
+        }
+
+        @Test
+        public void maskCopyHeapToDirect() {
+            maskCopyTest(ByteBuffer.allocate(1037), ByteBuffer.allocateDirect(1100));
+        }
+
+        @Test
+        public void maskCopyDifferentByteOrder() {
+            maskCopyTest(ByteBuffer.allocate(1037).order(ByteOrder.LITTLE_ENDIAN), ByteBuffer.allocate(1100));
+        }
+
+        @Test(expected = BufferOverflowException.class)
+        public void maskCopyOverflow() {
+            BinaryUtil.maskCopy(ByteBuffer.allocate(10), ByteBuffer.allocate(9), MASKING_KEY);
+        }
+
+        @Test
+        public void maskShorterThanWord() {
+            for (int i = 8; i < 16; i++) {
+                maskTest(ByteBuffer.allocate(i));
+            }
+        }
     }
 
     public static class SelectionKeyUtilTest {
@@ -29,10 +29,12 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -502,6 +504,328 @@ public class WebSocketClientTest {
         }
     }
 
+    @Test
+    public void multipleSelectorThreads() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final int NUM_THREADS = 4;
+        final int NUM_CONNECTIONS = 8;
+        final int NUM_MESSAGES = 5;
+        final CountDownLatch latch = new CountDownLatch(NUM_CONNECTIONS * NUM_MESSAGES);
+        final List<Set<Thread>> callbackThreads = new ArrayList<>();
+
+        WebSocketFactory factory = new WebSocketFactory(NUM_THREADS);
+        List<WebSocket> sockets = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < NUM_CONNECTIONS; i++) {
+                final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+                callbackThreads.add(threads);
+                SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+                    @Override
+                    public void onTextMessage(String message) {
+                        if (message.equals(MESSAGE)) {
+                            threads.add(Thread.currentThread());
+                            latch.countDown();
+                        }
+                    }
+                }).build();
+                sockets.add(factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS));
+            }
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                for (WebSocket ws : sockets) {
+                    ws.sendTextMessageAsync(MESSAGE);
+                }
+            }
+
+            assertThat(latch.await(1000, TimeUnit.MILLISECONDS), is(true));
+
+            Map<Thread, Integer> connectionsPerThread = new HashMap<>();
+            for (Set<Thread> threads : callbackThreads) {
+                // Each connection stays on the selector thread to which it is assigned.
+                assertThat(threads.size(), is(1));
+                Thread thread = threads.iterator().next();
+                Integer count = connectionsPerThread.get(thread);
+                connectionsPerThread.put(thread, count == null ? 1 : count + 1);
+            }
+            // Connections are spread evenly over the selector threads.
+            assertThat(connectionsPerThread.size(), is(NUM_THREADS));
+            for (int count : connectionsPerThread.values()) {
+                assertThat(count, is(NUM_CONNECTIONS / NUM_THREADS));
+            }
+        } finally {
+            for (WebSocket ws : sockets) {
+                ws.close();
+            }
+            factory.destroy();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void selectorThreadsNonPositive() throws IOException {
+        new WebSocketFactory(0);
+    }
+
+    @Test
+    public void echoBinaryWithSmallFlushBudget() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch latch = new CustomLatch(1);
+        byte[] data = TestUtil.fixedLengthRandomByteArray(JettyWebSocketServlet.MAX_SIZE_1MB);
+        final byte[] copy = Arrays.copyOf(data, data.length);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onBinaryMessage(byte[] message) {
+                if (Arrays.equals(message, copy)) {
+                    latch.countDown();
+                } else {
+                    latch.unlockByFailure();
+                }
+            }
+        }).setMaxResponsePayloadSizeInBytes(JettyWebSocketServlet.MAX_SIZE_1MB).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        factory.setMaxBytesPerFlush(1024);
+
+        try (WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            ws.sendBinaryMessageAsync(data);
+            assertThat(latch.await(10000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(latch.isUnlockedByFailure(), is(false));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void flushBudgetNonPositive() throws IOException {
+        WebSocketFactory factory = new WebSocketFactory();
+        try {
+            factory.setMaxBytesPerFlush(0);
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void writabilityChangedByWatermarks() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch unwritable = new CustomLatch(1);
+        final CustomLatch writable = new CustomLatch(1);
+        final CustomLatch echoed = new CustomLatch(1);
+        byte[] data = TestUtil.fixedLengthRandomByteArray(JettyWebSocketServlet.MAX_SIZE_1MB);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onBinaryMessage(byte[] message) {
+                echoed.countDown();
+            }
+
+            @Override
+            public void onWritabilityChanged(boolean isWritable) {
+                if (isWritable) {
+                    writable.countDown();
+                } else {
+                    unwritable.countDown();
+                }
+            }
+        }).setMaxResponsePayloadSizeInBytes(JettyWebSocketServlet.MAX_SIZE_1MB)
+                .setWriteBufferWatermarks(1024, 1024 * 16)
+                .build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try (WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            ws.sendBinaryMessageAsync(data);
+            assertThat(ws.bufferedAmount(), is(greaterThan(0L)));
+            assertThat(unwritable.await(1000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(writable.await(10000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(echoed.await(10000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(ws.isWritable(), is(true));
+            assertThat(ws.bufferedAmount(), is(0L));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void sendCallbackCompletedBeforeEcho() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch sent = new CustomLatch(1);
+        final CustomLatch echoed = new CustomLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onTextMessage(String message) {
+                if (sent.getCount() == 0) {
+                    echoed.countDown();
+                } else {
+                    echoed.unlockByFailure();
+                }
+            }
+        }).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try (WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            ws.sendTextMessageAsync("message", new SendCallback() {
+                @Override
+                public void onSent() {
+                    sent.countDown();
+                }
+
+                @Override
+                public void onFailed(IOException e) {
+                    sent.unlockByFailure();
+                }
+            });
+            assertThat(sent.awaitSuccess(1000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(echoed.awaitSuccess(1000, TimeUnit.MILLISECONDS), is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void sendCallbackFailedAfterClose() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch failed = new CustomLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler()).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try {
+            WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS);
+            ws.close();
+            ws.sendBinaryMessageAsync(new byte[10], new SendCallback() {
+                @Override
+                public void onSent() {
+                    failed.unlockByFailure();
+                }
+
+                @Override
+                public void onFailed(IOException e) {
+                    failed.countDown();
+                }
+            });
+            assertThat(failed.awaitSuccess(1000, TimeUnit.MILLISECONDS), is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void scheduledTaskRunsUnlessCancelled() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch ran = new CustomLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler()).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try {
+            WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS);
+            Timeout cancelled = ws.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ran.unlockByFailure();
+                }
+            }, 100, TimeUnit.MILLISECONDS);
+            assertThat(cancelled.cancel(), is(true));
+            assertThat(cancelled.isCancelled(), is(true));
+
+            Timeout timeout = ws.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            }, 200, TimeUnit.MILLISECONDS);
+            assertThat(ran.awaitSuccess(1000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(timeout.cancel(), is(false));
+            assertThat(timeout.isCancelled(), is(false));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void closedByIdleTimeout() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch closed = new CustomLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onClosed(int code, String reason) {
+                closed.countDown();
+            }
+        }).setIdleTimeout(300, TimeUnit.MILLISECONDS).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try {
+            WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS);
+            assertThat(closed.await(200, TimeUnit.MILLISECONDS), is(false));
+            assertThat(ws.isConnected(), is(true));
+            assertThat(closed.awaitSuccess(2000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(ws.isConnected(), is(false));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void echoKeepsConnectionFromIdleTimeout() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch closed = new CustomLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onClosed(int code, String reason) {
+                closed.countDown();
+            }
+        }).setIdleTimeout(300, TimeUnit.MILLISECONDS).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try {
+            WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < 6; i++) {
+                ws.sendTextMessageAsync("keep");
+                assertThat(closed.await(100, TimeUnit.MILLISECONDS), is(false));
+            }
+            assertThat(ws.isConnected(), is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idleTimeoutNonPositive() throws IOException {
+        new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setIdleTimeout(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void heartbeatMeasuresRttWithoutOnPong() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch pong = new CustomLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onPong(String message) {
+                pong.countDown();
+            }
+        }).setHeartbeat(100, 100, TimeUnit.MILLISECONDS, true).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try (WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            assertThat(pong.await(550, TimeUnit.MILLISECONDS), is(false));
+            assertThat(ws.isConnected(), is(true));
+
+            HeartbeatStats stats = ws.heartbeatStats();
+            assertThat(stats.pongCount(), is(greaterThanOrEqualTo(3L)));
+            assertThat(stats.missedCount(), is(0L));
+            assertThat(stats.smoothedRtt(TimeUnit.NANOSECONDS), is(greaterThan(0L)));
+            long sum = 0;
+            for (long count : stats.histogram()) {
+                sum += count;
+            }
+            assertThat(sum, is(stats.pongCount()));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pongTimeoutLongerThanHeartbeatInterval() throws IOException {
+        new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setHeartbeat(1, 2, TimeUnit.SECONDS, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void heartbeatIntervalNonPositive() throws IOException {
+        new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setHeartbeat(0, 0, TimeUnit.SECONDS, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void highWatermarkLowerThanLow() throws IOException {
+        new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setWriteBufferWatermarks(2, 1);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void payloadLimitNonPositive() throws IOException {
         new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setMaxResponsePayloadSizeInBytes(0);
@@ -678,6 +1002,105 @@ public class WebSocketClientTest {
         }
     }
 
+    @Test
+    public void openAsyncNotifiesCallback() throws IOException, InterruptedException {
+        final CustomLatch opened = new CustomLatch(2);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://127.0.0.1:10000"), new SilentEventHandler()).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        try {
+            OpenCallback callback = new OpenCallback() {
+                @Override
+                public void onOpened(WebSocket ws) {
+                    assertThat(ws.isConnected(), is(true));
+                    opened.countDown();
+                }
+
+                @Override
+                public void onFailed(IOException e) {
+                    opened.unlockByFailure();
+                }
+            };
+            OpenFuture future = factory.openAsync(req, callback);
+            assertThat(opened.await(1000, TimeUnit.MILLISECONDS), is(false));
+            assertThat(opened.getCount(), is(1L));
+
+            // Added after completion.
+            future.addCallback(callback);
+            assertThat(opened.isUnlockedByCountDown(), is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void cancelOpenAsync() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CustomLatch failed = new CustomLatch(1);
+        try (ServerSocket silent = new ServerSocket(10001)) {
+            SessionRequest req = new SessionRequest.Builder(URI.create("ws://127.0.0.1:10001"), new SilentEventHandler()).build();
+
+            WebSocketFactory factory = new WebSocketFactory();
+            try {
+                OpenFuture future = factory.openAsync(req, new OpenCallback() {
+                    @Override
+                    public void onOpened(WebSocket ws) {
+                        failed.unlockByFailure();
+                    }
+
+                    @Override
+                    public void onFailed(IOException e) {
+                        failed.countDown();
+                    }
+                });
+                assertThat(future.cancel(false), is(true));
+                assertThat(future.isCancelled(), is(true));
+                assertThat(future.isDone(), is(true));
+                assertThat(failed.awaitSuccess(500, TimeUnit.MILLISECONDS), is(true));
+                assertThat(future.cancel(false), is(false));
+                try {
+                    future.get(500, TimeUnit.MILLISECONDS);
+                    fail();
+                } catch (CancellationException e) {
+                    // expected
+                }
+            } finally {
+                factory.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void pendingOpenAsyncDoesNotOccupyThreads() throws IOException, InterruptedException {
+        final int connections = 100;
+        final CountDownLatch timedOut = new CountDownLatch(connections);
+        try (ServerSocket silent = new ServerSocket(10001, connections)) {
+            SessionRequest req = new SessionRequest.Builder(URI.create("ws://127.0.0.1:10001"), new SilentEventHandler())
+                    .setConnectionTimeout(1000, TimeUnit.MILLISECONDS).build();
+
+            WebSocketFactory factory = new WebSocketFactory();
+            try {
+                int threadsBefore = Thread.activeCount();
+                for (int i = 0; i < connections; i++) {
+                    factory.openAsync(req, new OpenCallback() {
+                        @Override
+                        public void onOpened(WebSocket ws) {
+                        }
+
+                        @Override
+                        public void onFailed(IOException e) {
+                            timedOut.countDown();
+                        }
+                    });
+                }
+                Thread.sleep(500);
+                assertThat(Thread.activeCount() - threadsBefore, is(lessThan(connections / 2)));
+                assertThat(timedOut.await(3000, TimeUnit.MILLISECONDS), is(true));
+            } finally {
+                factory.destroy();
+            }
+        }
+    }
+
     @Test
     public void handleUpgradeRequestRejection() throws IOException, InterruptedException, ExecutionException, TimeoutException {
         HttpHeader reject = new HttpHeader.Builder(JettyWebSocketServlet.REJECT_KEY).appendValue("reject").build();
@@ -119,12 +119,12 @@ public class WebSocketUnusualCasesTest {
 
         @Test
         public void onPingFrame() {
-            mListener.onPingFrame("message");
+            mListener.onPingFrame(new byte[]{1, 2, 3});
         }
 
         @Test
         public void onPongFrame() {
-            mListener.onPongFrame("message");
+            mListener.onPongFrame(new byte[]{1, 2, 3});
         }
 
         @Test
@@ -13,6 +13,7 @@ import net.kazyx.wirespider.Base64Encoder;
 import net.kazyx.wirespider.Handshake;
 import net.kazyx.wirespider.SessionRequest;
 import net.kazyx.wirespider.SilentEventHandler;
+import net.kazyx.wirespider.SendCallback;
 import net.kazyx.wirespider.SocketChannelWriter;
 import net.kazyx.wirespider.TestUtil;
 import net.kazyx.wirespider.exception.HandshakeFailureException;
@@ -54,6 +55,10 @@ public class HandshakeTest {
             @Override
             public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
             }
+
+            @Override
+            public void writeAsync(ByteBuffer data, SendCallback callback) {
+            }
         }, true);
     }
 
@@ -276,6 +281,10 @@ public class HandshakeTest {
             @Override
             public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
             }
+
+            @Override
+            public void writeAsync(ByteBuffer data, SendCallback callback) {
+            }
         }, false);
         mHandshake.tryUpgrade(DUMMY_URI, null);
     }
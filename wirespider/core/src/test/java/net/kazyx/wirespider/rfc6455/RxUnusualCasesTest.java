@@ -15,6 +15,7 @@ import net.kazyx.wirespider.FailOnCallbackRxListener;
 import net.kazyx.wirespider.TestUtil;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -340,7 +341,7 @@ public class RxUnusualCasesTest {
             final CustomLatch latch = new CustomLatch(1);
             Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
                 @Override
-                public void onPingFrame(String message) {
+                public void onPingFrame(byte[] message) {
                     latch.countDown();
                 }
             }, 1000, true);
@@ -532,4 +533,55 @@ public class RxUnusualCasesTest {
             }
         }
     }
+
+    public static class CoalescedFramesTest {
+        private static byte[] textFrames(String[] messages) throws UnsupportedEncodingException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String message : messages) {
+                byte[] payload = message.getBytes("UTF-8");
+                out.write(0b10000001);
+                out.write(payload.length);
+                out.write(payload, 0, payload.length);
+            }
+            return out.toByteArray();
+        }
+
+        private static Rfc6455Rx textRx(final String[] messages, final CustomLatch latch) {
+            return new Rfc6455Rx(new FailOnCallbackRxListener() {
+                private int mIndex = 0;
+
+                @Override
+                public void onTextMessage(String message) {
+                    if (messages[mIndex++].equals(message)) {
+                        latch.countDown();
+                    } else {
+                        latch.unlockByFailure();
+                    }
+                }
+            }, 1000, true);
+        }
+
+        @Test
+        public void multipleFramesInSingleBuffer() throws UnsupportedEncodingException {
+            String[] messages = {"a", "", TestUtil.fixedLengthFixedString(100), "b"};
+            CustomLatch latch = new CustomLatch(messages.length);
+            Rfc6455Rx rx = textRx(messages, latch);
+
+            rx.onDataReceived(ByteBuffer.wrap(textFrames(messages)));
+            assertThat(latch.isUnlockedByCountDown(), is(true));
+        }
+
+        @Test
+        public void framesStraddleBuffers() throws UnsupportedEncodingException {
+            String[] messages = {"first", TestUtil.fixedLengthFixedString(120), "third"};
+            CustomLatch latch = new CustomLatch(messages.length);
+            Rfc6455Rx rx = textRx(messages, latch);
+
+            byte[] data = textFrames(messages);
+            for (int i = 0; i < data.length; i += 3) {
+                rx.onDataReceived(ByteBuffer.wrap(Arrays.copyOfRange(data, i, Math.min(i + 3, data.length))));
+            }
+            assertThat(latch.isUnlockedByCountDown(), is(true));
+        }
+    }
 }
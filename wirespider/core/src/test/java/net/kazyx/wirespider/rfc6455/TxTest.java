@@ -10,13 +10,17 @@
 package net.kazyx.wirespider.rfc6455;
 
 import net.kazyx.wirespider.CloseStatusCode;
+import net.kazyx.wirespider.CustomLatch;
 import net.kazyx.wirespider.FailOnCallbackRxListener;
+import net.kazyx.wirespider.SendCallback;
 import net.kazyx.wirespider.SocketChannelWriter;
 import net.kazyx.wirespider.TestUtil;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -48,7 +52,15 @@ public class TxTest {
 
             @Override
             public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
+                writeAsync(data, (SendCallback) null);
+            }
+
+            @Override
+            public void writeAsync(ByteBuffer data, SendCallback callback) {
                 mRx.onDataReceived(data);
+                if (callback != null) {
+                    callback.onSent();
+                }
             }
         }
 
@@ -65,20 +77,32 @@ public class TxTest {
             final String msg = "ping";
             mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
                 @Override
-                public void onPingFrame(String message) {
-                    assertThat(message, is(msg));
+                public void onPingFrame(byte[] payload) {
+                    assertThat(payload, is(msg.getBytes(StandardCharsets.UTF_8)));
                 }
             }, 100000, fromServer());
             mTx.sendPingAsync(msg);
         }
 
+        @Test
+        public void binaryPing() {
+            final byte[] payload = {(byte) 0xFF, 0, 1, 2};
+            mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onPingFrame(byte[] message) {
+                    assertThat(message, is(new byte[]{(byte) 0xFF, 0, 1, 2}));
+                }
+            }, 100000, fromServer());
+            mTx.sendPingAsync(payload);
+        }
+
         @Test
         public void pong() {
-            final String pong = "pong_message";
+            final byte[] pong = "pong_message".getBytes(StandardCharsets.UTF_8);
             mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
                 @Override
-                public void onPongFrame(String message) {
-                    assertThat(message, is(pong));
+                public void onPongFrame(byte[] payload) {
+                    assertThat(payload, is(pong));
                 }
             }, 100000, fromServer());
             mTx.sendPongAsync(pong);
@@ -127,6 +151,66 @@ public class TxTest {
             binary(100000);
         }
 
+        @Test
+        public void binaryArgumentNotModified() {
+            final byte[] msg = TestUtil.fixedLengthRandomByteArray(1000);
+            byte[] sent = Arrays.copyOf(msg, msg.length);
+            mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onBinaryMessage(ByteBuffer data) {
+                    assertThat(Arrays.equals(msg, data.array()), is(true));
+                }
+            }, 100000, fromServer());
+            mTx.sendBinaryAsync(sent);
+            assertThat(Arrays.equals(msg, sent), is(true));
+        }
+
+        @Test
+        public void sendCallbackCompleted() {
+            final CustomLatch latch = new CustomLatch(2);
+            mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onTextMessage(String text) {
+                    latch.countDown();
+                }
+            }, 100000, fromServer());
+            mTx.sendTextAsync("text", new SendCallback() {
+                @Override
+                public void onSent() {
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailed(IOException e) {
+                    latch.unlockByFailure();
+                }
+            });
+            assertThat(latch.isUnlockedByCountDown(), is(true));
+        }
+
+        @Test
+        public void sendCallbackFailedAfterClose() {
+            final CustomLatch latch = new CustomLatch(1);
+            mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onCloseFrame(int code, String reason) {
+                }
+            }, 100000, fromServer());
+            mTx.sendCloseAsync(CloseStatusCode.NORMAL_CLOSURE, "");
+            mTx.sendBinaryAsync(new byte[1], new SendCallback() {
+                @Override
+                public void onSent() {
+                    latch.unlockByFailure();
+                }
+
+                @Override
+                public void onFailed(IOException e) {
+                    latch.countDown();
+                }
+            });
+            assertThat(latch.isUnlockedByCountDown(), is(true));
+        }
+
         private void text(int length) {
             final String msg = TestUtil.fixedLengthFixedString(length);
             mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
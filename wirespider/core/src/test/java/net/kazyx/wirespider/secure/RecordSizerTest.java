@@ -0,0 +1,95 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.secure;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RecordSizerTest {
+    private static final int MAX = 16 * 1024;
+    private static final long START = 123456789L;
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private RecordSizer mSizer;
+    private long mNow;
+
+    @Before
+    public void setup() {
+        mSizer = new RecordSizer(MAX, START);
+        mNow = START;
+    }
+
+    /**
+     * Wrap records of the size given by the sizer at 1 ms intervals until the given amount of plaintext is sent.
+     */
+    private void transfer(long bytes) {
+        long sent = 0;
+        while (sent < bytes) {
+            mNow += INTERVAL;
+            int size = (int) Math.min(mSizer.nextRecordSize(mNow), bytes - sent);
+            mSizer.onWrapped(size);
+            sent += size;
+        }
+    }
+
+    @Test
+    public void smallRecordsAtStart() {
+        assertThat(mSizer.nextRecordSize(mNow), is(RecordSizer.SMALL_RECORD_SIZE));
+    }
+
+    @Test
+    public void smallRecordsUntilThreshold() {
+        transfer(RecordSizer.SMALL_RECORD_BYTES - 1);
+        assertThat(mSizer.nextRecordSize(mNow + INTERVAL), is(RecordSizer.SMALL_RECORD_SIZE));
+    }
+
+    @Test
+    public void fullRecordsAfterThreshold() {
+        transfer(RecordSizer.SMALL_RECORD_BYTES);
+        assertThat(mSizer.nextRecordSize(mNow + INTERVAL), is(MAX));
+    }
+
+    @Test
+    public void fullRecordsWithinIdlePeriod() {
+        transfer(RecordSizer.SMALL_RECORD_BYTES);
+        assertThat(mSizer.nextRecordSize(mNow + RecordSizer.IDLE_RESET_NANOS), is(MAX));
+    }
+
+    @Test
+    public void smallRecordsAfterIdle() {
+        transfer(RecordSizer.SMALL_RECORD_BYTES);
+        mNow += RecordSizer.IDLE_RESET_NANOS + 1;
+        assertThat(mSizer.nextRecordSize(mNow), is(RecordSizer.SMALL_RECORD_SIZE));
+
+        // Threshold is counted again from the idle.
+        transfer(RecordSizer.SMALL_RECORD_BYTES - 1);
+        assertThat(mSizer.nextRecordSize(mNow + INTERVAL), is(RecordSizer.SMALL_RECORD_SIZE));
+        transfer(1);
+        assertThat(mSizer.nextRecordSize(mNow + INTERVAL), is(MAX));
+    }
+
+    @Test
+    public void idleAtStartKeepsSmallRecords() {
+        assertThat(mSizer.nextRecordSize(mNow + RecordSizer.IDLE_RESET_NANOS * 10), is(RecordSizer.SMALL_RECORD_SIZE));
+    }
+
+    @Test
+    public void maxSizeSmallerThanSmallRecord() {
+        RecordSizer sizer = new RecordSizer(512, START);
+        assertThat(sizer.nextRecordSize(START), is(512));
+        sizer.onWrapped((int) RecordSizer.SMALL_RECORD_BYTES);
+        assertThat(sizer.nextRecordSize(START + INTERVAL), is(512));
+    }
+}
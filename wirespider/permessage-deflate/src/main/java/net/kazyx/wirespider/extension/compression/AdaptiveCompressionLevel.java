@@ -0,0 +1,154 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+/**
+ * Adjusts compression level of a connection from the compression time and ratio of recent messages.<br>
+ * The level is lowered when the compression costs more than the time budget,
+ * and raised while the compression is fast enough and the higher level actually improves the ratio.
+ * <p>
+ * This is not thread safe. It must be used under the lock of the compressor.
+ * </p>
+ */
+final class AdaptiveCompressionLevel {
+    /**
+     * Number of messages in the sliding window.
+     */
+    static final int WINDOW_SIZE = 16;
+
+    /**
+     * Compression cost is regarded as cheap enough to try higher level if it is below this fraction of the budget.
+     */
+    private static final int HEADROOM_DIVISOR = 2;
+
+    /**
+     * Higher level is kept only if it reduces the compressed size at least by this fraction.
+     */
+    private static final double MIN_RATIO_GAIN = 0.01;
+
+    /**
+     * Level is not raised for this number of messages after the higher level turned out to be useless.
+     */
+    private static final int HOLD_MESSAGES = WINDOW_SIZE * 16;
+
+    private final int mMinLevel;
+    private final int mMaxLevel;
+    private final long mBudgetNanosPerKiB;
+
+    private final int[] mInputSizes = new int[WINDOW_SIZE];
+    private final int[] mOutputSizes = new int[WINDOW_SIZE];
+    private final long[] mElapsedNanos = new long[WINDOW_SIZE];
+    private int mNext;
+    private int mCount;
+    private long mInputSum;
+    private long mOutputSum;
+    private long mElapsedSum;
+
+    private int mLevel;
+
+    /**
+     * Ratio measured at one level lower, or negative unless the level has just been raised.
+     */
+    private double mLowerLevelRatio = -1;
+    private int mHoldCount;
+
+    /**
+     * @param minLevel Minimum compression level.
+     * @param maxLevel Maximum compression level.
+     * @param budgetNanosPerKiB Acceptable compression time for each KiB of the messages in nanoseconds.
+     * @param initialLevel Compression level to start with, which is rounded into {@code minLevel} to {@code maxLevel}.
+     */
+    AdaptiveCompressionLevel(int minLevel, int maxLevel, long budgetNanosPerKiB, int initialLevel) {
+        mMinLevel = minLevel;
+        mMaxLevel = maxLevel;
+        mBudgetNanosPerKiB = budgetNanosPerKiB;
+        mLevel = Math.max(minLevel, Math.min(maxLevel, initialLevel));
+    }
+
+    /**
+     * @return Compression level to be used for the next message.
+     */
+    int level() {
+        return mLevel;
+    }
+
+    /**
+     * Record result of a compression and re-evaluate the level.
+     *
+     * @param inputSize Size of the original message in bytes.
+     * @param outputSize Size of the compressed message in bytes.
+     * @param elapsedNanos Time spent to compress the message in nanoseconds.
+     * @return Compression level to be used for the next message.
+     */
+    int onCompressed(int inputSize, int outputSize, long elapsedNanos) {
+        if (mCount == WINDOW_SIZE) {
+            mInputSum -= mInputSizes[mNext];
+            mOutputSum -= mOutputSizes[mNext];
+            mElapsedSum -= mElapsedNanos[mNext];
+        } else {
+            mCount++;
+        }
+        mInputSizes[mNext] = inputSize;
+        mOutputSizes[mNext] = outputSize;
+        mElapsedNanos[mNext] = elapsedNanos;
+        mInputSum += inputSize;
+        mOutputSum += outputSize;
+        mElapsedSum += elapsedNanos;
+        mNext = (mNext + 1) % WINDOW_SIZE;
+
+        if (mHoldCount > 0) {
+            mHoldCount--;
+        }
+        if (mCount == WINDOW_SIZE && mInputSum != 0) {
+            evaluate();
+        }
+        return mLevel;
+    }
+
+    private void evaluate() {
+        long costPerKiB = mElapsedSum * 1024 / mInputSum;
+        double ratio = (double) mOutputSum / mInputSum;
+
+        if (costPerKiB > mBudgetNanosPerKiB) {
+            if (mLevel > mMinLevel) {
+                changeLevel(mLevel - 1, -1);
+            }
+            return;
+        }
+
+        if (mLowerLevelRatio >= 0 && ratio > mLowerLevelRatio * (1 - MIN_RATIO_GAIN)) {
+            // Higher level only burns CPU for this traffic.
+            mHoldCount = HOLD_MESSAGES;
+            changeLevel(mLevel - 1, -1);
+            return;
+        }
+
+        if (costPerKiB * HEADROOM_DIVISOR < mBudgetNanosPerKiB && mLevel < mMaxLevel && mHoldCount == 0) {
+            changeLevel(mLevel + 1, ratio);
+            return;
+        }
+
+        // Keep the current level and slide the window.
+        mLowerLevelRatio = -1;
+    }
+
+    /**
+     * Samples of the previous level are discarded so that the new level is evaluated with its own samples.
+     */
+    private void changeLevel(int level, double lowerLevelRatio) {
+        mLevel = level;
+        mLowerLevelRatio = lowerLevelRatio;
+        mCount = 0;
+        mNext = 0;
+        mInputSum = 0;
+        mOutputSum = 0;
+        mElapsedSum = 0;
+    }
+}
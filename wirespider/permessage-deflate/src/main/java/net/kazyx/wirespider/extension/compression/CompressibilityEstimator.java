@@ -0,0 +1,143 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Guesses whether a message is worth compressing before spending the full deflate cost on it.<br>
+ * Byte entropy of the head of the message is estimated at first.
+ * Messages looking random, e.g. images or already compressed data, are sent without compression
+ * unless recent messages of such kind were actually compressed well on this connection.
+ * <p>
+ * This is not thread safe. It must be used under the lock of the transmitter.
+ * </p>
+ */
+final class CompressibilityEstimator {
+    /**
+     * Number of bytes from the head of the message to estimate entropy.
+     */
+    static final int SAMPLE_SIZE = 1024;
+
+    /**
+     * Messages smaller than this are always compressed, since their entropy can not be estimated well.
+     */
+    static final int MIN_SAMPLE_SIZE = 256;
+
+    /**
+     * Entropy in bits per byte, above which the message is regarded as random.
+     */
+    static final double HIGH_ENTROPY = 7.5;
+
+    /**
+     * Random looking messages are compressed if they are reduced to this ratio recently.
+     */
+    static final double COMPRESSIBLE_RATIO = 0.95;
+
+    /**
+     * One of this number of skipped messages is compressed to keep track of the traffic.
+     */
+    static final int PROBE_INTERVAL = 16;
+
+    /**
+     * n * log2(n) for each byte count in the sample.
+     */
+    private static final double[] N_LOG2_N = new double[SAMPLE_SIZE + 1];
+
+    static {
+        for (int n = 1; n <= SAMPLE_SIZE; n++) {
+            N_LOG2_N[n] = n * Math.log(n) / Math.log(2);
+        }
+    }
+
+    private final int[] mCounts = new int[256];
+
+    /**
+     * Smoothed compression ratio of the random looking messages.
+     * They are assumed to be incompressible until they are actually compressed.
+     */
+    private double mRecentRatio = 1.0;
+
+    private int mSkipCount;
+
+    private boolean mLastHighEntropy;
+
+    /**
+     * @param data Message to be sent. Its position and limit are not modified.
+     * @return {@code false} if compression of the message is likely to be wasted.
+     */
+    boolean shouldCompress(ByteBuffer data) {
+        mLastHighEntropy = false;
+        if (data.remaining() < MIN_SAMPLE_SIZE) {
+            return true;
+        }
+        if (entropy(data) < HIGH_ENTROPY) {
+            return true;
+        }
+
+        mLastHighEntropy = true;
+        if (mRecentRatio < COMPRESSIBLE_RATIO) {
+            return true;
+        }
+        if (++mSkipCount >= PROBE_INTERVAL) {
+            mSkipCount = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record result of the compression of the message which is passed to {@link #shouldCompress(ByteBuffer)} at last.
+     *
+     * @param originalSize Size of the original message in bytes.
+     * @param compressedSize Size of the compressed message in bytes.
+     */
+    void onCompressed(int originalSize, int compressedSize) {
+        if (!mLastHighEntropy || originalSize == 0) {
+            return;
+        }
+        double ratio = (double) compressedSize / originalSize;
+        mRecentRatio += (ratio - mRecentRatio) / 8;
+    }
+
+    /**
+     * @param data Message. Its position and limit are not modified.
+     * @return Estimated entropy of the head of the message in bits per byte.
+     */
+    double entropy(ByteBuffer data) {
+        int size = Math.min(data.remaining(), SAMPLE_SIZE);
+        Arrays.fill(mCounts, 0);
+        if (data.hasArray()) {
+            byte[] array = data.array();
+            int offset = data.arrayOffset() + data.position();
+            for (int i = 0; i < size; i++) {
+                mCounts[array[offset + i] & 0xff]++;
+            }
+        } else {
+            int position = data.position();
+            for (int i = 0; i < size; i++) {
+                mCounts[data.get(position + i) & 0xff]++;
+            }
+        }
+
+        double sum = 0;
+        int symbols = 0;
+        for (int count : mCounts) {
+            if (count != 0) {
+                sum += N_LOG2_N[count];
+                symbols++;
+            }
+        }
+        double entropy = (N_LOG2_N[size] - sum) / size;
+        // Miller-Madow correction, since the sample underestimates entropy of the random data.
+        return entropy + (symbols - 1) / (2 * size * Math.log(2));
+    }
+}
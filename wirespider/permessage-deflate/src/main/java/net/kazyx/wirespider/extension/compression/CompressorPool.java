@@ -0,0 +1,185 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import net.kazyx.wirespider.SelectorLoop;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of {@link Deflater}s and {@link Inflater}s shared by the connections on a selector loop.<br>
+ * Connections without context takeover borrow them for each message,
+ * so that native memory of zlib is consumed by the messages in process rather than by the connections.
+ * <p>
+ * Objects might be borrowed on any thread, thus this is thread safe.
+ * </p>
+ */
+final class CompressorPool implements Closeable {
+    static final SelectorLoop.ResourceFactory<CompressorPool> FACTORY = new SelectorLoop.ResourceFactory<CompressorPool>() {
+        @Override
+        public CompressorPool newResource() {
+            return new CompressorPool(DEFAULT_MAX_POOLED);
+        }
+    };
+
+    /**
+     * Maximum number of idle objects kept for each of compressor and decompressor.
+     */
+    static final int DEFAULT_MAX_POOLED = 32;
+
+    private final int mMaxPooled;
+
+    /**
+     * Idle compressors keyed by their level and strategy. See {@link #paramsKey(int, int)}.
+     */
+    private final Map<Integer, ArrayDeque<Deflater>> mDeflaters = new HashMap<>();
+
+    private int mIdleDeflaters;
+
+    private final ArrayDeque<Inflater> mInflaters = new ArrayDeque<>();
+
+    private boolean mClosed;
+
+    /**
+     * @param maxPooled Maximum number of idle objects kept for each of compressor and decompressor.
+     * Objects released beyond this are discarded.
+     */
+    CompressorPool(int maxPooled) {
+        mMaxPooled = maxPooled;
+    }
+
+    private static int paramsKey(int level, int strategy) {
+        // Strategy is one of 0, 1 and 2.
+        return level * 4 + strategy;
+    }
+
+    /**
+     * @param level Compression level of {@link Deflater}.
+     * @param strategy Compression strategy of {@link Deflater}.
+     * @return Compressor for raw deflate data in its initial state, which is released with the given level and strategy,
+     * or {@code null} if there is no such idle one.
+     */
+    Deflater borrowDeflater(int level, int strategy) {
+        synchronized (this) {
+            ArrayDeque<Deflater> idle = mDeflaters.get(paramsKey(level, strategy));
+            if (idle == null || idle.isEmpty()) {
+                return null;
+            }
+            mIdleDeflaters--;
+            return idle.pollFirst();
+        }
+    }
+
+    /**
+     * @return Compressor for raw deflate data in its initial state. Level and strategy are not specified.
+     */
+    Deflater borrowDeflater() {
+        synchronized (this) {
+            for (ArrayDeque<Deflater> idle : mDeflaters.values()) {
+                if (!idle.isEmpty()) {
+                    mIdleDeflaters--;
+                    return idle.pollFirst();
+                }
+            }
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * @param deflater Compressor acquired by {@link #borrowDeflater()} or {@link #borrowDeflater(int, int)}.
+     * It must not be used by the caller after this call.
+     * @param level Compression level which is applied to the compressor.
+     * @param strategy Compression strategy which is applied to the compressor.
+     */
+    void release(Deflater deflater, int level, int strategy) {
+        deflater.reset();
+        synchronized (this) {
+            if (!mClosed && mIdleDeflaters < mMaxPooled) {
+                Integer key = paramsKey(level, strategy);
+                ArrayDeque<Deflater> idle = mDeflaters.get(key);
+                if (idle == null) {
+                    idle = new ArrayDeque<>();
+                    mDeflaters.put(key, idle);
+                }
+                idle.addFirst(deflater);
+                mIdleDeflaters++;
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * @return Decompressor for raw deflate data in its initial state.
+     */
+    Inflater borrowInflater() {
+        synchronized (this) {
+            Inflater inflater = mInflaters.pollFirst();
+            if (inflater != null) {
+                return inflater;
+            }
+        }
+        return new Inflater(true);
+    }
+
+    /**
+     * @param inflater Decompressor acquired by {@link #borrowInflater()}. It must not be used by the caller after this call.
+     */
+    void release(Inflater inflater) {
+        inflater.reset();
+        synchronized (this) {
+            if (!mClosed && mInflaters.size() < mMaxPooled) {
+                mInflaters.addFirst(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * @return Number of idle compressors in this pool.
+     */
+    synchronized int idleDeflaters() {
+        return mIdleDeflaters;
+    }
+
+    /**
+     * @return Number of idle decompressors in this pool.
+     */
+    synchronized int idleInflaters() {
+        return mInflaters.size();
+    }
+
+    /**
+     * Release native memory of the idle objects. Objects released after this are discarded.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            for (ArrayDeque<Deflater> idle : mDeflaters.values()) {
+                for (Deflater deflater : idle) {
+                    deflater.end();
+                }
+            }
+            mDeflaters.clear();
+            mIdleDeflaters = 0;
+            for (Inflater inflater : mInflaters) {
+                inflater.end();
+            }
+            mInflaters.clear();
+        }
+    }
+}
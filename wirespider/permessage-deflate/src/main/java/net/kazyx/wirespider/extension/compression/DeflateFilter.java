@@ -17,8 +17,15 @@ import java.nio.ByteBuffer;
 class DeflateFilter implements PayloadFilter {
     private final PerMessageDeflate mDeflater;
 
-    DeflateFilter(PerMessageDeflate deflater) {
+    private final CompressibilityEstimator mEstimator;
+
+    /**
+     * @param deflater Compressor of the messages.
+     * @param estimator Estimator to skip incompressible messages, or {@code null} to compress every message.
+     */
+    DeflateFilter(PerMessageDeflate deflater, CompressibilityEstimator estimator) {
         mDeflater = deflater;
+        mEstimator = estimator;
     }
 
     @Override
@@ -41,13 +48,27 @@ class DeflateFilter implements PayloadFilter {
         return onReceivingMessage(data);
     }
 
+    /**
+     * @return Compressed data, or {@code null} to send the original data as is.
+     */
     private ByteBuffer onSendingMessage(ByteBuffer data) throws IOException {
         int pos = data.position();
         int limit = data.limit();
         int remaining = data.remaining();
+        if (remaining < mDeflater.compressionThreshold()) {
+            return null;
+        }
+        if (mEstimator != null && !mEstimator.shouldCompress(data)) {
+            // Sent as is. It does not affect the sliding window even if context takeover is used.
+            return null;
+        }
         try {
             ByteBuffer compressed = mDeflater.compress(data);
-            if (compressed.remaining() <= remaining) {
+            if (mEstimator != null) {
+                mEstimator.onCompressed(remaining, compressed.remaining());
+            }
+            if (compressed.remaining() <= remaining || mDeflater.isCompressContextTakeover()) {
+                // Compressed data is in the sliding window of the compressor, thus it must be sent.
                 return compressed;
             }
         } catch (IOException e) {
@@ -56,9 +77,10 @@ class DeflateFilter implements PayloadFilter {
             throw e;
         }
 
+        // Original data is smaller than compressed.
         data.position(pos);
         data.limit(limit);
-        throw new IOException("Original data is smaller than compressed.");
+        return null;
     }
 
     private ByteBuffer onReceivingMessage(ByteBuffer data) throws IOException {
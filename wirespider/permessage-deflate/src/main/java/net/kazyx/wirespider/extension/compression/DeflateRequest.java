@@ -9,31 +9,64 @@
 
 package net.kazyx.wirespider.extension.compression;
 
+import net.kazyx.wirespider.SelectorLoop;
 import net.kazyx.wirespider.extension.Extension;
-import net.kazyx.wirespider.extension.ExtensionRequest;
+import net.kazyx.wirespider.extension.LoopAwareExtensionRequest;
 import net.kazyx.wirespider.http.HttpHeader;
+import net.kazyx.wirespider.util.ArgumentCheck;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * Suggestion to use permessage-deflate extension in opening handshake.
  */
-public class DeflateRequest implements ExtensionRequest {
+public class DeflateRequest implements LoopAwareExtensionRequest {
     // private final int mMaxClientWindowBits;
 
     private final int mMaxServerWindowBits;
 
     private int mCompressionThreshold;
 
+    private final boolean mClientContextTakeover;
+
+    private final boolean mServerContextTakeover;
+
+    private final int mCompressionLevel;
+
+    private final int mCompressionStrategy;
+
+    private final boolean mAdaptiveCompression;
+    private final int mMinCompressionLevel;
+    private final int mMaxCompressionLevel;
+    private final long mCompressionBudgetNanosPerKiB;
+
+    private final boolean mSkipIncompressible;
+
     private DeflateRequest(Builder builder) {
         // mMaxClientWindowBits = builder.mMaxClientWindowBits;
         mMaxServerWindowBits = builder.mMaxServerWindowBits;
         mCompressionThreshold = builder.mCompressionThreshold;
+        mClientContextTakeover = builder.mClientContextTakeover;
+        mServerContextTakeover = builder.mServerContextTakeover;
+        mCompressionLevel = builder.mCompressionLevel;
+        mCompressionStrategy = builder.mCompressionStrategy;
+        mAdaptiveCompression = builder.mAdaptiveCompression;
+        mMinCompressionLevel = builder.mMinCompressionLevel;
+        mMaxCompressionLevel = builder.mMaxCompressionLevel;
+        mCompressionBudgetNanosPerKiB = builder.mCompressionBudgetNanosPerKiB;
+        mSkipIncompressible = builder.mSkipIncompressible;
     }
 
     @Override
     public HttpHeader requestHeader() {
-        StringBuilder sb = new StringBuilder(PerMessageDeflate.NAME)
-                .append(";").append(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER)
-                .append(";").append(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER);
+        StringBuilder sb = new StringBuilder(PerMessageDeflate.NAME);
+        if (!mClientContextTakeover) {
+            sb.append(";").append(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        if (!mServerContextTakeover) {
+            sb.append(";").append(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER);
+        }
         /*
         if (mMaxClientWindowBits != 15) {
             sb.append(";").append(PerMessageDeflate.CLIENT_MAX_WINDOW_BITS)
@@ -49,9 +82,35 @@ public class DeflateRequest implements ExtensionRequest {
 
     @Override
     public Extension extension() {
-        return new PerMessageDeflate(mCompressionThreshold);
+        return newExtension(null);
     }
 
+    /**
+     * Compressor and decompressor are borrowed from the pool of the loop for each message without context takeover.
+     */
+    @Override
+    public Extension extension(SelectorLoop loop) {
+        return newExtension(loop.resource(CompressorPool.FACTORY));
+    }
+
+    private PerMessageDeflate newExtension(CompressorPool pool) {
+        AdaptiveCompressionLevel adaptiveLevel = null;
+        if (mAdaptiveCompression) {
+            // Each connection adjusts its own level.
+            int initialLevel = mCompressionLevel == Deflater.DEFAULT_COMPRESSION ? DEFAULT_LEVEL : mCompressionLevel;
+            adaptiveLevel = new AdaptiveCompressionLevel(mMinCompressionLevel, mMaxCompressionLevel,
+                    mCompressionBudgetNanosPerKiB, initialLevel);
+        }
+        return new PerMessageDeflate(mCompressionThreshold, mClientContextTakeover, mServerContextTakeover,
+                mCompressionLevel, mCompressionStrategy, adaptiveLevel,
+                mSkipIncompressible ? new CompressibilityEstimator() : null, pool);
+    }
+
+    /**
+     * Level of zlib used for {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    private static final int DEFAULT_LEVEL = 6;
+
     public static class Builder {
         private int mMaxServerWindowBits = 8;
 
@@ -89,6 +148,140 @@ public class DeflateRequest implements ExtensionRequest {
             return this;
         }
 
+        private boolean mClientContextTakeover = false;
+
+        /**
+         * Keep LZ77 sliding window of the compressor across messages sent by client.<br>
+         * Messages referring to the preceding ones are compressed much better, in exchange for the memory kept for each connection.
+         * Disabled by default.
+         * <p>
+         * Even if enabled, context takeover is not used when the server responds with {@code client_no_context_takeover}.
+         * </p>
+         *
+         * @param enabled {@code true} to use context takeover for the messages sent by client.
+         * @return This builder.
+         * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.1.1.2">RFC 7692 Section 7.1.1.2</a>
+         */
+        public Builder setClientContextTakeover(boolean enabled) {
+            mClientContextTakeover = enabled;
+            return this;
+        }
+
+        private boolean mServerContextTakeover = false;
+
+        /**
+         * Allow server to keep LZ77 sliding window of its compressor across messages.<br>
+         * The decompressor of the client keeps its window as well if the server uses context takeover.
+         * Disabled by default.
+         *
+         * @param enabled {@code true} to allow context takeover for the messages sent by server.
+         * @return This builder.
+         * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.1.1.1">RFC 7692 Section 7.1.1.1</a>
+         */
+        public Builder setServerContextTakeover(boolean enabled) {
+            mServerContextTakeover = enabled;
+            return this;
+        }
+
+        private int mCompressionLevel = Deflater.BEST_COMPRESSION;
+
+        /**
+         * Set compression level of the messages sent by client. {@link Deflater#BEST_COMPRESSION} by default.<br>
+         * Lower level is faster and suitable for latency sensitive traffic, in exchange for the compression ratio.
+         * <p>
+         * If adaptive compression is enabled, this is used as the initial level.
+         * </p>
+         *
+         * @param level From 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+         * @return This builder.
+         * @throws IllegalArgumentException If given value is not a valid compression level.
+         * @see #setAdaptiveCompression(int, int, int, TimeUnit)
+         */
+        public Builder setCompressionLevel(int level) {
+            if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || Deflater.BEST_COMPRESSION < level)) {
+                throw new IllegalArgumentException("Compression level must be between 0 to 9, or DEFAULT_COMPRESSION.");
+            }
+            mCompressionLevel = level;
+            return this;
+        }
+
+        private int mCompressionStrategy = Deflater.DEFAULT_STRATEGY;
+
+        /**
+         * Set compression strategy of the messages sent by client. {@link Deflater#DEFAULT_STRATEGY} by default.
+         * <p>
+         * {@link Deflater#FILTERED} suits data consisting of small values with random distribution,
+         * and {@link Deflater#HUFFMAN_ONLY} skips string matching to save CPU for data with few repetitions.
+         * </p>
+         *
+         * @param strategy One of {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED} and {@link Deflater#HUFFMAN_ONLY}.
+         * @return This builder.
+         * @throws IllegalArgumentException If given value is not a valid compression strategy.
+         */
+        public Builder setCompressionStrategy(int strategy) {
+            switch (strategy) {
+                case Deflater.DEFAULT_STRATEGY:
+                case Deflater.FILTERED:
+                case Deflater.HUFFMAN_ONLY:
+                    mCompressionStrategy = strategy;
+                    return this;
+                default:
+                    throw new IllegalArgumentException("Unknown compression strategy: " + strategy);
+            }
+        }
+
+        private boolean mAdaptiveCompression = false;
+        private int mMinCompressionLevel;
+        private int mMaxCompressionLevel;
+        private long mCompressionBudgetNanosPerKiB;
+
+        /**
+         * Adjust compression level of each connection from the compression time and ratio of recent messages. Disabled by default.<br>
+         * The level is lowered while compressing takes longer than the budget,
+         * and raised while it is well within the budget as long as the higher level improves the compression ratio.
+         *
+         * @param minLevel Minimum compression level from 0 to 9.
+         * @param maxLevel Maximum compression level from {@code minLevel} to 9.
+         * @param budget Acceptable time to compress 1 KiB of the messages.
+         * @param unit Unit of {@code budget}.
+         * @return This builder.
+         * @throws IllegalArgumentException If the levels are out of range, or {@code budget} is zero or negative value.
+         * @throws NullPointerException If {@code unit} is {@code null}.
+         * @see #setCompressionLevel(int)
+         */
+        public Builder setAdaptiveCompression(int minLevel, int maxLevel, int budget, TimeUnit unit) {
+            if (minLevel < Deflater.NO_COMPRESSION || maxLevel < minLevel || Deflater.BEST_COMPRESSION < maxLevel) {
+                throw new IllegalArgumentException("Compression levels must satisfy 0 <= min <= max <= 9");
+            }
+            if (budget <= 0) {
+                throw new IllegalArgumentException("Budget must be positive");
+            }
+            ArgumentCheck.rejectNull(unit);
+
+            mAdaptiveCompression = true;
+            mMinCompressionLevel = minLevel;
+            mMaxCompressionLevel = maxLevel;
+            mCompressionBudgetNanosPerKiB = unit.toNanos(budget);
+            return this;
+        }
+
+        private boolean mSkipIncompressible = false;
+
+        /**
+         * Send messages looking incompressible without compression, such as images or already compressed data.
+         * Disabled by default.<br>
+         * Byte entropy of the head of each message and compression ratio of recent such messages are used to decide it,
+         * so that the CPU time is not wasted for deflate which does not reduce the size.
+         *
+         * @param enabled {@code true} to skip incompressible messages,
+         * {@code false} to compress every message larger than the compression threshold.
+         * @return This builder.
+         */
+        public Builder setSkipIncompressible(boolean enabled) {
+            mSkipIncompressible = enabled;
+            return this;
+        }
+
         public DeflateRequest build() {
             return new DeflateRequest(this);
         }
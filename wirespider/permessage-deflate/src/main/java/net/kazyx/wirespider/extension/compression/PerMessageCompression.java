@@ -22,7 +22,7 @@ public abstract class PerMessageCompression implements Extension {
     public static final byte RESERVED_BIT_FLAGS = 0b01000000;
 
     /**
-     * @param source Original data.
+     * @param source Original data. Its position and limit are not modified.
      * @return Compressed data.
      * @throws IOException Failed to compress data.
      */
@@ -30,7 +30,7 @@ public abstract class PerMessageCompression implements Extension {
 
     /**
      * @param source Compressed data.
-     * @return Original data.
+     * @return Original data. Its backing array has exactly the size of the data.
      * @throws IOException Failed to decompress data.
      */
     public abstract ByteBuffer decompress(ByteBuffer source) throws IOException;
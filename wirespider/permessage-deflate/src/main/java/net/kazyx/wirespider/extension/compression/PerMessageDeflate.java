@@ -12,17 +12,12 @@ package net.kazyx.wirespider.extension.compression;
 import net.kazyx.wirespider.extension.PayloadFilter;
 import net.kazyx.wirespider.util.BinaryUtil;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.List;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
 
 /**
  * permessage-deflate extension
@@ -46,16 +41,71 @@ public class PerMessageDeflate extends PerMessageCompression {
 
     // static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
 
+    /**
+     * Empty stored block appended by {@link Deflater#SYNC_FLUSH}, which is removed from the message payload.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.2.1">RFC 7692 Section 7.2.1</a>
+     */
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    /**
+     * Single byte representation of an empty message.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.2.3.6">RFC 7692 Section 7.2.3.6</a>
+     */
+    private static final byte[] EMPTY_BLOCK = {0x00};
+
     private int mCompressionThreshold;
 
     private final DeflateFilter mFilter;
 
+    private final boolean mClientContextTakeoverRequested;
+    private final boolean mServerContextTakeoverAllowed;
+
+    private boolean mCompressContextTakeover;
+    private boolean mDecompressContextTakeover;
+
     /**
      * @param threshold Minimum size of messages to enable compression in bytes.
      */
     PerMessageDeflate(int threshold) {
+        this(threshold, false, false);
+    }
+
+    /**
+     * @param threshold Minimum size of messages to enable compression in bytes.
+     * @param clientContextTakeover Use context takeover for the messages sent by client if the server allows.
+     * @param serverContextTakeover Allow server to use context takeover.
+     */
+    PerMessageDeflate(int threshold, boolean clientContextTakeover, boolean serverContextTakeover) {
+        this(threshold, clientContextTakeover, serverContextTakeover, Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY, null,
+                null, null);
+    }
+
+    /**
+     * @param threshold Minimum size of messages to enable compression in bytes.
+     * @param clientContextTakeover Use context takeover for the messages sent by client if the server allows.
+     * @param serverContextTakeover Allow server to use context takeover.
+     * @param level Compression level of {@link Deflater}.
+     * @param strategy Compression strategy of {@link Deflater}.
+     * @param adaptiveLevel Controller of the compression level, or {@code null} to use {@code level} constantly.
+     * @param estimator Estimator to skip incompressible messages, or {@code null} to compress every message.
+     * @param pool Pool to borrow compressor and decompressor for each message without context takeover,
+     * or {@code null} to keep them in this instance.
+     */
+    PerMessageDeflate(int threshold, boolean clientContextTakeover, boolean serverContextTakeover,
+                      int level, int strategy, AdaptiveCompressionLevel adaptiveLevel, CompressibilityEstimator estimator,
+                      CompressorPool pool) {
         mCompressionThreshold = threshold;
-        mFilter = new DeflateFilter(this);
+        mLevel = adaptiveLevel == null ? level : adaptiveLevel.level();
+        mStrategy = strategy;
+        mAdaptiveLevel = adaptiveLevel;
+        mPool = pool;
+        mClientContextTakeoverRequested = clientContextTakeover;
+        mServerContextTakeoverAllowed = serverContextTakeover;
+        mCompressContextTakeover = clientContextTakeover;
+        mDecompressContextTakeover = serverContextTakeover;
+        mFilter = new DeflateFilter(this, estimator);
     }
 
     @Override
@@ -65,8 +115,46 @@ public class PerMessageDeflate extends PerMessageCompression {
 
     @Override
     public boolean accept(String[] parameters) {
-        List<String> list = Arrays.asList(parameters);
-        return list.containsAll(Arrays.asList(CLIENT_NO_CONTEXT_TAKEOVER, SERVER_NO_CONTEXT_TAKEOVER));
+        boolean clientNoContextTakeover = false;
+        boolean serverNoContextTakeover = false;
+        for (int i = 1; i < parameters.length; i++) {
+            String param = parameters[i].trim();
+            int eq = param.indexOf('=');
+            String name = eq == -1 ? param : param.substring(0, eq).trim();
+            switch (name) {
+                case CLIENT_NO_CONTEXT_TAKEOVER:
+                    clientNoContextTakeover = true;
+                    break;
+                case SERVER_NO_CONTEXT_TAKEOVER:
+                    serverNoContextTakeover = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (!mServerContextTakeoverAllowed && !serverNoContextTakeover) {
+            // Server must accept server_no_context_takeover offered by client.
+            return false;
+        }
+        mCompressContextTakeover = mClientContextTakeoverRequested && !clientNoContextTakeover;
+        mDecompressContextTakeover = !serverNoContextTakeover;
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the compressor keeps its sliding window across messages.
+     * In this case, compressed data must be sent since the following messages might refer to it.
+     */
+    boolean isCompressContextTakeover() {
+        return mCompressContextTakeover;
+    }
+
+    /**
+     * @return Minimum size of messages to enable compression in bytes.
+     */
+    int compressionThreshold() {
+        return mCompressionThreshold;
     }
 
     @Override
@@ -74,49 +162,205 @@ public class PerMessageDeflate extends PerMessageCompression {
         return mFilter;
     }
 
-    private final Deflater mCompressor = new Deflater(Deflater.BEST_COMPRESSION, true);
-    private static final int DEFLATE_BUFFER = 512;
+    private final CompressorPool mPool;
+
+    private final Object mCompressLock = new Object();
+
+    /**
+     * Compressor kept in this instance, which is created on the first message.
+     */
+    private Deflater mCompressor;
+
+    private int mLevel;
+
+    private final int mStrategy;
+
+    private final AdaptiveCompressionLevel mAdaptiveLevel;
+
+    private boolean mParamsChanged;
+
+    private static final byte[] EMPTY_INPUT = new byte[0];
+
+    /**
+     * Working buffers are kept for the next message unless they grow larger than this.
+     */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 64;
+    private static final int MIN_BUFFER = 512;
 
     private static final IOException MESSAGE_TOO_SMALL = new IOException("Avoid deflate for small message");
 
+    /**
+     * Output buffer of the compressor, which is shared by the returned buffers.
+     */
+    private byte[] mDeflateBuffer = new byte[MIN_BUFFER];
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The returned buffer shares the working buffer of this instance,
+     * so it is valid only until the next call of this method.
+     * </p>
+     */
     @Override
     public ByteBuffer compress(ByteBuffer source) throws IOException {
         if (source.remaining() < mCompressionThreshold) {
             throw MESSAGE_TOO_SMALL;
         }
 
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(source.remaining());
+        synchronized (mCompressLock) {
+            int level = mLevel;
+            Deflater compressor = acquireCompressor();
+            byte[] out = mDeflateBuffer;
+            int written = 0;
+            try {
+                if (mParamsChanged) {
+                    // Zlib compresses pending input with the previous level or strategy without flushing it,
+                    // thus new ones must be applied while the compressor has no input.
+                    compressor.setInput(EMPTY_INPUT);
+                    written = compressor.deflate(out, 0, out.length, Deflater.NO_FLUSH);
+                    mParamsChanged = false;
+                }
 
-        synchronized (mCompressor) {
-            mCompressor.reset();
+                setInput(compressor, source);
+                long start = mAdaptiveLevel == null ? 0 : System.nanoTime();
+                while (true) {
+                    written += compressor.deflate(out, written, out.length - written, Deflater.SYNC_FLUSH);
+                    if (written < out.length) {
+                        // Output buffer is not filled up, thus everything is flushed.
+                        break;
+                    }
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                mDeflateBuffer = out.length <= MAX_RETAINED_BUFFER ? out : new byte[MIN_BUFFER];
 
-            DeflaterOutputStream dos = new DeflaterOutputStream(buffer, mCompressor, DEFLATE_BUFFER);
-            OutputStream os = new BufferedOutputStream(dos);
-            os.write(BinaryUtil.toBytesRemaining(source));
-            os.flush();
-            dos.finish();
+                if (mAdaptiveLevel != null && mAdaptiveLevel.onCompressed(source.remaining(), written, System.nanoTime() - start) != mLevel) {
+                    // Applied from the next message.
+                    mLevel = mAdaptiveLevel.level();
+                    mParamsChanged = true;
+                }
+            } finally {
+                if (compressor != mCompressor) {
+                    mPool.release(compressor, level, mStrategy);
+                }
+            }
 
-            return ByteBuffer.wrap(buffer.toByteArray());
+            if (written < TAIL.length) {
+                // Nothing is flushed for an empty message on the taken over context.
+                return ByteBuffer.wrap(EMPTY_BLOCK);
+            }
+            // Output of the sync flush always ends with the empty stored block.
+            return ByteBuffer.wrap(out, 0, written - TAIL.length);
         }
     }
 
-    private final Inflater mDecompressor = new Inflater(true);
-    private static final int INFLATE_BUFFER = 512;
+    private Deflater acquireCompressor() {
+        if (mCompressContextTakeover || mPool == null) {
+            if (mCompressor == null) {
+                mCompressor = new Deflater(mLevel, true);
+                mCompressor.setStrategy(mStrategy);
+                mParamsChanged = true;
+            } else {
+                if (!mCompressContextTakeover) {
+                    mCompressor.reset();
+                }
+                if (mParamsChanged) {
+                    mCompressor.setLevel(mLevel);
+                }
+            }
+            return mCompressor;
+        }
+
+        // Reset state is enough since no message refers to the preceding ones.
+        Deflater compressor = mPool.borrowDeflater(mLevel, mStrategy);
+        if (compressor != null) {
+            mParamsChanged = false;
+            return compressor;
+        }
+        compressor = mPool.borrowDeflater();
+        compressor.setLevel(mLevel);
+        compressor.setStrategy(mStrategy);
+        mParamsChanged = true;
+        return compressor;
+    }
+
+    private static void setInput(Deflater deflater, ByteBuffer source) {
+        if (source.hasArray()) {
+            deflater.setInput(source.array(), source.arrayOffset() + source.position(), source.remaining());
+        } else {
+            deflater.setInput(BinaryUtil.toBytesRemaining(source.duplicate()));
+        }
+    }
+
+    private final Object mDecompressLock = new Object();
+
+    /**
+     * Decompressor kept in this instance, which is created on the first message.
+     */
+    private Inflater mDecompressor;
+
+    /**
+     * Output buffer of the decompressor. Decompressed data is copied to an array of the exact size at last.
+     */
+    private byte[] mInflateBuffer = new byte[MIN_BUFFER];
 
     @Override
     public ByteBuffer decompress(ByteBuffer source) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(source.remaining());
+        synchronized (mDecompressLock) {
+            Inflater decompressor = acquireDecompressor();
+            if (source.hasArray()) {
+                decompressor.setInput(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            } else {
+                decompressor.setInput(BinaryUtil.toBytesRemaining(source.duplicate()));
+            }
 
-        synchronized (mDecompressor) {
-            mDecompressor.reset();
+            byte[] out = mInflateBuffer;
+            int written = 0;
+            boolean tailAppended = false;
+            try {
+                while (true) {
+                    written += decompressor.inflate(out, written, out.length - written);
+                    if (decompressor.finished()) {
+                        // Final block is received. Next message starts a new stream.
+                        decompressor.reset();
+                        break;
+                    }
+                    if (decompressor.needsDictionary()) {
+                        throw new IOException("Preset dictionary is not supported");
+                    }
+                    if (written == out.length) {
+                        // Inflater might hold more output even if all the input is consumed.
+                        out = Arrays.copyOf(out, out.length * 2);
+                    } else if (decompressor.needsInput()) {
+                        if (tailAppended) {
+                            break;
+                        }
+                        decompressor.setInput(TAIL);
+                        tailAppended = true;
+                    }
+                }
+            } catch (DataFormatException e) {
+                decompressor.reset();
+                throw new IOException("Invalid compressed data: " + e.getMessage());
+            } finally {
+                mInflateBuffer = out.length <= MAX_RETAINED_BUFFER ? out : new byte[MIN_BUFFER];
+                if (decompressor != mDecompressor) {
+                    mPool.release(decompressor);
+                }
+            }
 
-            InflaterOutputStream ios = new InflaterOutputStream(buffer, mDecompressor, INFLATE_BUFFER);
-            OutputStream os = new BufferedOutputStream(ios);
-            os.write(source.array(), 0, source.remaining());
-            os.flush();
-            ios.finish();
+            return ByteBuffer.wrap(Arrays.copyOf(out, written));
+        }
+    }
 
-            return ByteBuffer.wrap(buffer.toByteArray());
+    private Inflater acquireDecompressor() {
+        if (mDecompressContextTakeover || mPool == null) {
+            if (mDecompressor == null) {
+                mDecompressor = new Inflater(true);
+            } else if (!mDecompressContextTakeover) {
+                mDecompressor.reset();
+            }
+            return mDecompressor;
         }
+        return mPool.borrowInflater();
     }
 }
@@ -12,6 +12,7 @@ package net.kazyx.wirespider;
 import net.kazyx.wirespider.extension.ExtensionRequest;
 import net.kazyx.wirespider.extension.compression.DeflateRequest;
 import net.kazyx.wirespider.extension.compression.PerMessageDeflate;
+import net.kazyx.wirespider.extension.compression.PerMessageDeflateCreator;
 import net.kazyx.wirespider.util.Base64;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -23,13 +24,20 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 
 public class ExtensionDeflateTest {
     public static class CompressorTest {
@@ -81,6 +89,150 @@ public class ExtensionDeflateTest {
         }
     }
 
+    public static class BufferHandlingTest {
+        @Test
+        public void variousSizes() throws IOException {
+            Random random = new Random(0);
+            for (boolean takeover : new boolean[]{false, true}) {
+                PerMessageDeflate compression = PerMessageDeflateCreator.create(0, takeover, takeover);
+                PerMessageDeflate decompression = PerMessageDeflateCreator.create(0, takeover, takeover);
+                int[] sizes = {0, 1, 511, 512, 513, 1024, 4096, 65535, 65536, 65537, 300000};
+                for (int size : sizes) {
+                    for (boolean compressible : new boolean[]{false, true}) {
+                        byte[] original = new byte[size];
+                        if (compressible) {
+                            for (int i = 0; i < size; i++) {
+                                original[i] = (byte) ('a' + random.nextInt(4));
+                            }
+                        } else {
+                            random.nextBytes(original);
+                        }
+                        ByteBuffer compressed = compression.compress(ByteBuffer.wrap(original));
+                        assertThat(decompression.decompress(compressed).array(), is(original));
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void sourcePositionIsRespected() throws IOException {
+            PerMessageDeflate compression = PerMessageDeflateCreator.create(0);
+            byte[] original = TestUtil.fixedLengthFixedByteArray(1000);
+            byte[] padded = new byte[original.length + 20];
+            System.arraycopy(original, 0, padded, 10, original.length);
+
+            ByteBuffer source = ByteBuffer.wrap(padded, 10, original.length).slice();
+            source.position(0);
+            ByteBuffer compressed = compression.compress(source);
+            assertThat(source.position(), is(0));
+            assertThat(source.remaining(), is(original.length));
+
+            byte[] offsetCompressed = new byte[compressed.remaining() + 7];
+            compressed.get(offsetCompressed, 7, compressed.remaining());
+            ByteBuffer input = ByteBuffer.wrap(offsetCompressed);
+            input.position(7);
+            assertThat(compression.decompress(input).array(), is(original));
+        }
+
+        @Test
+        public void directSource() throws IOException {
+            PerMessageDeflate compression = PerMessageDeflateCreator.create(0);
+            byte[] original = TestUtil.fixedLengthFixedByteArray(1000);
+            ByteBuffer direct = ByteBuffer.allocateDirect(original.length);
+            direct.put(original).flip();
+            ByteBuffer compressed = compression.compress(direct);
+            assertThat(direct.remaining(), is(original.length));
+            assertThat(compression.decompress(compressed).array(), is(original));
+        }
+
+        @Test(expected = IOException.class)
+        public void invalidData() throws IOException {
+            PerMessageDeflate compression = PerMessageDeflateCreator.create(0);
+            compression.decompress(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00}));
+        }
+    }
+
+    public static class ContextTakeoverTest {
+        @Test
+        public void messagesReferPrecedingOnes() throws IOException {
+            PerMessageDeflate compression = PerMessageDeflateCreator.create(0, true, true);
+            PerMessageDeflate decompression = PerMessageDeflateCreator.create(0, true, true);
+
+            ByteBuffer first = compression.compress(ByteBuffer.wrap(TestUtil.jsonMessage(0)));
+            int firstSize = first.remaining();
+            assertThat(decompression.decompress(first).array(), is(TestUtil.jsonMessage(0)));
+
+            ByteBuffer second = compression.compress(ByteBuffer.wrap(TestUtil.jsonMessage(1)));
+            assertThat(second.remaining(), is(lessThan(firstSize)));
+            assertThat(decompression.decompress(second).array(), is(TestUtil.jsonMessage(1)));
+        }
+
+        @Test
+        public void syncFlushTailIsRemoved() throws IOException {
+            PerMessageDeflate compression = PerMessageDeflateCreator.create(0, true, true);
+            ByteBuffer compressed = compression.compress(ByteBuffer.wrap(TestUtil.jsonMessage(0)));
+            byte[] bytes = new byte[compressed.remaining()];
+            compressed.get(bytes);
+            byte[] tail = Arrays.copyOfRange(bytes, bytes.length - 4, bytes.length);
+            assertThat(Arrays.equals(tail, new byte[]{0, 0, (byte) 0xff, (byte) 0xff}), is(false));
+        }
+
+        @Test
+        public void ratioComparedWithNoContextTakeover() throws IOException {
+            assertThat(totalCompressedSize(true), is(lessThan(totalCompressedSize(false))));
+        }
+
+        private static long totalCompressedSize(boolean takeover) throws IOException {
+            PerMessageDeflate compression = PerMessageDeflateCreator.create(0, takeover, takeover);
+            PerMessageDeflate decompression = PerMessageDeflateCreator.create(0, takeover, takeover);
+            long compressed = 0;
+            for (int i = 0; i < 1000; i++) {
+                byte[] msg = TestUtil.jsonMessage(i);
+                ByteBuffer buff = compression.compress(ByteBuffer.wrap(msg));
+                compressed += buff.remaining();
+                assertThat(decompression.decompress(buff).array(), is(msg));
+            }
+            return compressed;
+        }
+
+        @Test
+        public void requestHeaderWithoutContextTakeover() {
+            String header = new DeflateRequest.Builder().build().requestHeader().toHeaderLine();
+            assertThat(header, containsString("client_no_context_takeover"));
+            assertThat(header, containsString("server_no_context_takeover"));
+        }
+
+        @Test
+        public void requestHeaderWithContextTakeover() {
+            String header = new DeflateRequest.Builder()
+                    .setClientContextTakeover(true)
+                    .setServerContextTakeover(true)
+                    .build().requestHeader().toHeaderLine();
+            assertThat(header, not(containsString("client_no_context_takeover")));
+            assertThat(header, not(containsString("server_no_context_takeover")));
+        }
+
+        @Test
+        public void rejectServerContextTakeoverIfNotAllowed() {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, true, false);
+            assertThat(deflate.accept(new String[]{"permessage-deflate"}), is(false));
+            assertThat(deflate.accept(new String[]{"permessage-deflate", " server_no_context_takeover"}), is(true));
+        }
+
+        @Test
+        public void clientNoContextTakeoverInResponse() throws IOException {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, true, true);
+            assertThat(deflate.accept(new String[]{"permessage-deflate", "client_no_context_takeover"}), is(true));
+            int first = deflate.compress(ByteBuffer.wrap(TestUtil.jsonMessage(0))).remaining();
+            assertThat(deflate.compress(ByteBuffer.wrap(TestUtil.jsonMessage(0))).remaining(), is(first));
+
+            deflate = PerMessageDeflateCreator.create(0, true, true);
+            assertThat(deflate.accept(new String[]{"permessage-deflate", "server_max_window_bits=10"}), is(true));
+            first = deflate.compress(ByteBuffer.wrap(TestUtil.jsonMessage(0))).remaining();
+            assertThat(deflate.compress(ByteBuffer.wrap(TestUtil.jsonMessage(0))).remaining(), is(lessThan(first)));
+        }
+    }
+
     public static class BuilderTest {
         @Test(expected = IllegalArgumentException.class)
         public void maxServerWindowBitsLow() {
@@ -104,6 +256,177 @@ public class ExtensionDeflateTest {
                     .setMaxServerWindowBits(14)
                     .setMaxServerWindowBits(15);
         }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void compressionLevelLow() {
+            new DeflateRequest.Builder().setCompressionLevel(-2);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void compressionLevelHigh() {
+            new DeflateRequest.Builder().setCompressionLevel(10);
+        }
+
+        @Test
+        public void compressionLevelInRange() {
+            new DeflateRequest.Builder()
+                    .setCompressionLevel(Deflater.DEFAULT_COMPRESSION)
+                    .setCompressionLevel(Deflater.NO_COMPRESSION)
+                    .setCompressionLevel(Deflater.BEST_SPEED)
+                    .setCompressionLevel(Deflater.BEST_COMPRESSION);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void unknownCompressionStrategy() {
+            new DeflateRequest.Builder().setCompressionStrategy(3);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void adaptiveCompressionLevelsReversed() {
+            new DeflateRequest.Builder().setAdaptiveCompression(6, 5, 10, TimeUnit.MICROSECONDS);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void adaptiveCompressionZeroBudget() {
+            new DeflateRequest.Builder().setAdaptiveCompression(1, 9, 0, TimeUnit.MICROSECONDS);
+        }
+
+        @Test(expected = NullPointerException.class)
+        public void adaptiveCompressionNullUnit() {
+            new DeflateRequest.Builder().setAdaptiveCompression(1, 9, 10, null);
+        }
+    }
+
+    public static class SkipIncompressibleTest {
+        private static final int SIZE = 4096;
+
+        @Test
+        public void randomDataIsNotCompressed() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setSkipIncompressible(true)
+                    .build().extension();
+            ByteBuffer data = ByteBuffer.wrap(TestUtil.fixedLengthRandomByteArray(SIZE));
+            assertThat(deflate.filter().onSendingBinary(data), is(nullValue()));
+            assertThat(data.remaining(), is(SIZE));
+        }
+
+        @Test
+        public void randomDataWithContextTakeover() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setClientContextTakeover(true)
+                    .setSkipIncompressible(true)
+                    .build().extension();
+            assertThat(deflate.filter().onSendingBinary(ByteBuffer.wrap(TestUtil.fixedLengthRandomByteArray(SIZE))), is(nullValue()));
+
+            // Skipped message does not break the sliding window.
+            PerMessageDeflate decompression = PerMessageDeflateCreator.create(0, true, true);
+            byte[] text = TestUtil.fixedLengthFixedByteArray(SIZE);
+            ByteBuffer compressed = deflate.filter().onSendingBinary(ByteBuffer.wrap(text));
+            assertThat(decompression.decompress(compressed).array(), is(text));
+        }
+
+        @Test
+        public void fixedDataIsCompressed() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setSkipIncompressible(true)
+                    .build().extension();
+            ByteBuffer compressed = deflate.filter().onSendingBinary(ByteBuffer.wrap(TestUtil.fixedLengthFixedByteArray(SIZE)));
+            assertThat(compressed.remaining(), is(lessThan(SIZE)));
+        }
+
+        @Test
+        public void disabledByDefault() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setClientContextTakeover(true)
+                    .build().extension();
+            ByteBuffer compressed = deflate.filter().onSendingBinary(ByteBuffer.wrap(TestUtil.fixedLengthRandomByteArray(SIZE)));
+            assertThat(compressed.remaining(), is(greaterThan(SIZE)));
+        }
+
+        @Test
+        public void disabled() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setClientContextTakeover(true)
+                    .setSkipIncompressible(false)
+                    .build().extension();
+            ByteBuffer compressed = deflate.filter().onSendingBinary(ByteBuffer.wrap(TestUtil.fixedLengthRandomByteArray(SIZE)));
+            assertThat(compressed.remaining(), is(greaterThan(SIZE)));
+        }
+
+        @Test
+        public void smallerThanThresholdIsNotCompressed() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setCompressionThreshold(SIZE + 1)
+                    .build().extension();
+            ByteBuffer data = ByteBuffer.wrap(TestUtil.fixedLengthFixedByteArray(SIZE));
+            assertThat(deflate.filter().onSendingBinary(data), is(nullValue()));
+            assertThat(data.remaining(), is(SIZE));
+        }
+    }
+
+    public static class CompressionLevelTest {
+        private static PerMessageDeflate create(DeflateRequest.Builder builder) {
+            return (PerMessageDeflate) builder.build().extension();
+        }
+
+        @Test
+        public void levelsAndStrategies() throws IOException {
+            int[] strategies = {Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY};
+            for (boolean takeover : new boolean[]{false, true}) {
+                for (int strategy : strategies) {
+                    for (int level = Deflater.DEFAULT_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+                        PerMessageDeflate compression = create(new DeflateRequest.Builder()
+                                .setClientContextTakeover(takeover)
+                                .setCompressionLevel(level)
+                                .setCompressionStrategy(strategy));
+                        PerMessageDeflate decompression = PerMessageDeflateCreator.create(0, takeover, takeover);
+                        for (int i = 0; i < 3; i++) {
+                            byte[] msg = TestUtil.jsonMessage(i);
+                            assertThat(decompression.decompress(compression.compress(ByteBuffer.wrap(msg))).array(), is(msg));
+                        }
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void noCompression() throws IOException {
+            PerMessageDeflate compression = create(new DeflateRequest.Builder().setCompressionLevel(Deflater.NO_COMPRESSION));
+            byte[] msg = TestUtil.jsonMessage(0);
+            assertThat(compression.compress(ByteBuffer.wrap(msg)).remaining(), is(greaterThan(msg.length)));
+        }
+
+        @Test
+        public void adaptiveLevelFallsToMinimumOverBudget() throws IOException {
+            for (boolean takeover : new boolean[]{false, true}) {
+                PerMessageDeflate compression = create(new DeflateRequest.Builder()
+                        .setClientContextTakeover(takeover)
+                        .setAdaptiveCompression(0, 9, 1, TimeUnit.NANOSECONDS));
+                PerMessageDeflate decompression = PerMessageDeflateCreator.create(0, takeover, takeover);
+                int compressedSize = 0;
+                for (int i = 0; i < 200; i++) {
+                    byte[] msg = TestUtil.jsonMessage(i);
+                    ByteBuffer compressed = compression.compress(ByteBuffer.wrap(msg));
+                    compressedSize = compressed.remaining();
+                    assertThat(decompression.decompress(compressed).array(), is(msg));
+                }
+                // Reached level 0, which only stores the data.
+                assertThat(compressedSize, is(greaterThan(TestUtil.jsonMessage(199).length)));
+            }
+        }
+
+        @Test
+        public void adaptiveLevelStaysWithinBudget() throws IOException {
+            PerMessageDeflate compression = create(new DeflateRequest.Builder()
+                    .setClientContextTakeover(true)
+                    .setCompressionLevel(Deflater.BEST_SPEED)
+                    .setAdaptiveCompression(1, 9, 1, TimeUnit.SECONDS));
+            PerMessageDeflate decompression = PerMessageDeflateCreator.create(0, true, true);
+            for (int i = 0; i < 1000; i++) {
+                byte[] msg = TestUtil.jsonMessage(i);
+                assertThat(decompression.decompress(compression.compress(ByteBuffer.wrap(msg))).array(), is(msg));
+            }
+        }
     }
 
     public static class IntegrationDeflateTest {
@@ -0,0 +1,72 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class AdaptiveCompressionLevelTest {
+    private static final long BUDGET = 1000;
+
+    private static int feed(AdaptiveCompressionLevel adaptive, int count, int outputSize, long nanosPerKiB) {
+        int level = adaptive.level();
+        for (int i = 0; i < count; i++) {
+            level = adaptive.onCompressed(1024, outputSize, nanosPerKiB);
+        }
+        return level;
+    }
+
+    @Test
+    public void initialLevelIsRounded() {
+        assertThat(new AdaptiveCompressionLevel(3, 6, BUDGET, 9).level(), is(6));
+        assertThat(new AdaptiveCompressionLevel(3, 6, BUDGET, 1).level(), is(3));
+        assertThat(new AdaptiveCompressionLevel(3, 6, BUDGET, 4).level(), is(4));
+    }
+
+    @Test
+    public void levelIsKeptUntilWindowIsFilled() {
+        AdaptiveCompressionLevel adaptive = new AdaptiveCompressionLevel(1, 9, BUDGET, 5);
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE - 1, 500, BUDGET * 10), is(5));
+        assertThat(feed(adaptive, 1, 500, BUDGET * 10), is(4));
+    }
+
+    @Test
+    public void lowerLevelWhileOverBudget() {
+        AdaptiveCompressionLevel adaptive = new AdaptiveCompressionLevel(2, 9, BUDGET, 5);
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE * 10, 500, BUDGET * 10), is(2));
+    }
+
+    @Test
+    public void keepLevelWithinBudget() {
+        AdaptiveCompressionLevel adaptive = new AdaptiveCompressionLevel(1, 9, BUDGET, 5);
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE * 10, 500, BUDGET * 3 / 4), is(5));
+    }
+
+    @Test
+    public void raiseLevelWhileRatioImproves() {
+        AdaptiveCompressionLevel adaptive = new AdaptiveCompressionLevel(1, 9, BUDGET, 5);
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE, 500, BUDGET / 4), is(6));
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE, 400, BUDGET / 4), is(7));
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE, 300, BUDGET / 4), is(8));
+    }
+
+    @Test
+    public void revertLevelIfRatioDoesNotImprove() {
+        AdaptiveCompressionLevel adaptive = new AdaptiveCompressionLevel(1, 9, BUDGET, 5);
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE, 500, BUDGET / 4), is(6));
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE, 499, BUDGET / 4), is(5));
+
+        // Not raised again for a while even if it is cheap.
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE * 8, 500, BUDGET / 4), is(5));
+        assertThat(feed(adaptive, AdaptiveCompressionLevel.WINDOW_SIZE * 8, 500, BUDGET / 4), is(6));
+    }
+}
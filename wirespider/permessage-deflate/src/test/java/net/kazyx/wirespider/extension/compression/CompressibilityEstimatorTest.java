@@ -0,0 +1,104 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class CompressibilityEstimatorTest {
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] text(int size) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item").append(i * 7).append("\"},");
+        }
+        return sb.substring(0, size).getBytes("UTF-8");
+    }
+
+    @Test
+    public void entropyOfRandomData() {
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        assertThat(estimator.entropy(ByteBuffer.wrap(random(CompressibilityEstimator.MIN_SAMPLE_SIZE))),
+                is(greaterThan(CompressibilityEstimator.HIGH_ENTROPY)));
+        assertThat(estimator.entropy(ByteBuffer.wrap(random(CompressibilityEstimator.SAMPLE_SIZE))),
+                is(greaterThan(CompressibilityEstimator.HIGH_ENTROPY)));
+    }
+
+    @Test
+    public void entropyOfText() throws IOException {
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        assertThat(estimator.entropy(ByteBuffer.wrap(text(4096))), is(lessThan(6.0)));
+        assertThat(estimator.entropy(ByteBuffer.wrap(new byte[4096])), is(0.0));
+    }
+
+    @Test
+    public void entropyOfDirectBufferWithPosition() {
+        byte[] data = random(2000);
+        ByteBuffer heap = ByteBuffer.wrap(data);
+        heap.position(500);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).position(500);
+
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        assertThat(estimator.entropy(direct), is(estimator.entropy(heap)));
+        assertThat(direct.position(), is(500));
+        assertThat(heap.position(), is(500));
+    }
+
+    @Test
+    public void smallMessageIsAlwaysCompressed() {
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        for (int i = 0; i < CompressibilityEstimator.PROBE_INTERVAL * 2; i++) {
+            assertThat(estimator.shouldCompress(ByteBuffer.wrap(random(CompressibilityEstimator.MIN_SAMPLE_SIZE - 1))), is(true));
+        }
+    }
+
+    @Test
+    public void textIsCompressed() throws IOException {
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        assertThat(estimator.shouldCompress(ByteBuffer.wrap(text(4096))), is(true));
+    }
+
+    @Test
+    public void randomDataIsProbedPeriodically() {
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        ByteBuffer data = ByteBuffer.wrap(random(4096));
+        for (int i = 1; i < CompressibilityEstimator.PROBE_INTERVAL; i++) {
+            assertThat(estimator.shouldCompress(data), is(false));
+        }
+        assertThat(estimator.shouldCompress(data), is(true));
+        estimator.onCompressed(4096, 4100);
+        assertThat(estimator.shouldCompress(data), is(false));
+    }
+
+    @Test
+    public void randomLookingDataIsCompressedIfItWasEffective() {
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        ByteBuffer data = ByteBuffer.wrap(random(4096));
+        while (!estimator.shouldCompress(data)) {
+            // Wait for the probe.
+        }
+        estimator.onCompressed(4096, 1024);
+        assertThat(estimator.shouldCompress(data), is(true));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class CompressorPoolTest {
+    private static byte[] message(int i) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 20; j++) {
+            sb.append("{\"id\":").append(i).append(",\"seq\":").append(j).append("},");
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static PerMessageDeflate create(boolean contextTakeover, int level, CompressorPool pool) {
+        return create(contextTakeover, level, Deflater.DEFAULT_STRATEGY, pool);
+    }
+
+    private static PerMessageDeflate create(boolean contextTakeover, int level, int strategy, CompressorPool pool) {
+        return new PerMessageDeflate(0, contextTakeover, contextTakeover, level, strategy, null, null, pool);
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void releasedObjectsAreReused() {
+        CompressorPool pool = new CompressorPool(2);
+        Deflater deflater = pool.borrowDeflater();
+        pool.release(deflater, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+        assertThat(pool.borrowDeflater(), is(sameInstance(deflater)));
+
+        Inflater inflater = pool.borrowInflater();
+        pool.release(inflater);
+        assertThat(pool.borrowInflater(), is(sameInstance(inflater)));
+    }
+
+    @Test
+    public void poolIsBounded() {
+        CompressorPool pool = new CompressorPool(2);
+        Deflater[] deflaters = {pool.borrowDeflater(), pool.borrowDeflater(), pool.borrowDeflater()};
+        Inflater[] inflaters = {pool.borrowInflater(), pool.borrowInflater(), pool.borrowInflater()};
+        for (int i = 0; i < 3; i++) {
+            pool.release(deflaters[i], Deflater.BEST_SPEED + i, Deflater.DEFAULT_STRATEGY);
+            pool.release(inflaters[i]);
+        }
+        assertThat(pool.idleDeflaters(), is(2));
+        assertThat(pool.idleInflaters(), is(2));
+    }
+
+    @Test
+    public void closedPoolDiscardsObjects() {
+        CompressorPool pool = new CompressorPool(2);
+        Deflater deflater = pool.borrowDeflater();
+        pool.release(pool.borrowInflater());
+        pool.close();
+        assertThat(pool.idleInflaters(), is(0));
+
+        pool.release(deflater, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+        assertThat(pool.idleDeflaters(), is(0));
+        assertThat(pool.borrowDeflater(), is(not(sameInstance(deflater))));
+    }
+
+    @Test
+    public void deflatersAreBorrowedByParams() {
+        CompressorPool pool = new CompressorPool(4);
+        Deflater fast = pool.borrowDeflater();
+        Deflater filtered = pool.borrowDeflater();
+        pool.release(fast, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+        pool.release(filtered, Deflater.BEST_SPEED, Deflater.FILTERED);
+
+        assertThat(pool.borrowDeflater(Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY), is(nullValue()));
+        assertThat(pool.borrowDeflater(Deflater.BEST_SPEED, Deflater.FILTERED), is(sameInstance(filtered)));
+        assertThat(pool.borrowDeflater(Deflater.BEST_SPEED, Deflater.FILTERED), is(nullValue()));
+        assertThat(pool.borrowDeflater(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY), is(sameInstance(fast)));
+        assertThat(pool.idleDeflaters(), is(0));
+    }
+
+    @Test
+    public void deflaterIsReleasedWithItsParams() throws IOException {
+        CompressorPool pool = new CompressorPool(2);
+        PerMessageDeflate compression = create(false, Deflater.BEST_SPEED, Deflater.FILTERED, pool);
+        compression.compress(ByteBuffer.wrap(message(0)));
+        assertThat(pool.borrowDeflater(Deflater.BEST_SPEED, Deflater.FILTERED), is(notNullValue()));
+    }
+
+    @Test
+    public void pooledOutputEqualsDedicatedOutput() throws IOException {
+        int[] strategies = {Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY};
+        CompressorPool pool = new CompressorPool(1);
+        for (int i = 0; i < 3; i++) {
+            for (int strategy : strategies) {
+                byte[] msg = message(i);
+                byte[] dedicated = toBytes(create(false, Deflater.BEST_SPEED, strategy, null).compress(ByteBuffer.wrap(msg)));
+                // Pooled compressor is borrowed with other params, then borrowed again with the same ones.
+                PerMessageDeflate pooled = create(false, Deflater.BEST_SPEED, strategy, pool);
+                assertThat(toBytes(pooled.compress(ByteBuffer.wrap(msg))), is(dedicated));
+                assertThat(toBytes(pooled.compress(ByteBuffer.wrap(msg))), is(dedicated));
+            }
+        }
+    }
+
+    @Test
+    public void borrowedPerMessageWithoutContextTakeover() throws IOException {
+        CompressorPool pool = new CompressorPool(2);
+        PerMessageDeflate compression = create(false, Deflater.BEST_COMPRESSION, pool);
+        PerMessageDeflate decompression = create(false, Deflater.BEST_COMPRESSION, pool);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] msg = message(i);
+            assertThat(decompression.decompress(compression.compress(ByteBuffer.wrap(msg))).array(), is(msg));
+            assertThat(pool.idleDeflaters(), is(1));
+            assertThat(pool.idleInflaters(), is(1));
+        }
+    }
+
+    @Test
+    public void notBorrowedWithContextTakeover() throws IOException {
+        CompressorPool pool = new CompressorPool(2);
+        PerMessageDeflate compression = create(true, Deflater.BEST_COMPRESSION, pool);
+        PerMessageDeflate decompression = create(true, Deflater.BEST_COMPRESSION, pool);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] msg = message(i);
+            assertThat(decompression.decompress(compression.compress(ByteBuffer.wrap(msg))).array(), is(msg));
+        }
+        assertThat(pool.idleDeflaters(), is(0));
+        assertThat(pool.idleInflaters(), is(0));
+    }
+
+    @Test
+    public void connectionsWithDifferentLevelsShareObjects() throws IOException {
+        CompressorPool pool = new CompressorPool(1);
+        PerMessageDeflate fast = create(false, Deflater.BEST_SPEED, pool);
+        PerMessageDeflate best = create(false, Deflater.BEST_COMPRESSION, pool);
+        PerMessageDeflate stored = create(false, Deflater.NO_COMPRESSION, pool);
+        PerMessageDeflate decompression = create(false, Deflater.BEST_COMPRESSION, pool);
+
+        for (int i = 0; i < 5; i++) {
+            byte[] msg = message(i);
+            assertThat(decompression.decompress(fast.compress(ByteBuffer.wrap(msg))).array(), is(msg));
+            assertThat(decompression.decompress(best.compress(ByteBuffer.wrap(msg))).array(), is(msg));
+            ByteBuffer raw = stored.compress(ByteBuffer.wrap(msg));
+            assertThat(raw.remaining() > msg.length, is(true));
+            assertThat(decompression.decompress(raw).array(), is(msg));
+        }
+        assertThat(pool.idleDeflaters(), is(1));
+    }
+
+    @Test
+    public void invalidDataReleasesDecompressor() {
+        CompressorPool pool = new CompressorPool(2);
+        PerMessageDeflate decompression = create(false, Deflater.BEST_COMPRESSION, pool);
+        try {
+            decompression.decompress(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00}));
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertThat(pool.idleInflaters(), is(1));
+    }
+}
@@ -13,4 +13,8 @@ public class PerMessageDeflateCreator {
     public static PerMessageDeflate create(int threshold) {
         return new PerMessageDeflate(threshold);
     }
+
+    public static PerMessageDeflate create(int threshold, boolean clientContextTakeover, boolean serverContextTakeover) {
+        return new PerMessageDeflate(threshold, clientContextTakeover, serverContextTakeover);
+    }
 }